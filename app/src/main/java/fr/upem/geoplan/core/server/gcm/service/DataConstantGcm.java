@@ -12,6 +12,16 @@ final class DataConstantGcm {
     static String POSITION_LATITUDE = "lat";
     static String POSITION_LONGITUDE = "lng";
 
+    // Pagination constant, the lists are received in chunks
+    static String PAGE_TOKEN = "token";
+    static String PAGE_CHUNK = "chunk";
+    static String PAGE_TOTAL = "total";
+
+    // Encoding constant, the large chunks are deflated and written in base64
+    static String ACCEPT = "accept";
+    static String ENCODING = "encoding";
+    static String DEFLATE = "deflate";
+
     // User constant
     static String USER_ID = "_id";
     static String FIRST_NAME = "firstName";
@@ -49,6 +59,7 @@ final class DataConstantGcm {
     static String RECEIVED_EVENT_ID = "receivedEventId";
     static String UPDATE_POSITION= "updatePosition";
     static String RECEIVED_USER_POSITION = "receivedUserPosition";
+    static String RECEIVED_USER_POSITIONS = "receivedUserPositions";
     static String RECEIVED_EVENTS_GUESTED = "receivedEventsGuested";
     static String RECEIVED_EVENTS_OWNED = "receivedEventsOwned";
     static String RECEIVED_USER_ACCORDING_TO_MAIL = "receivedUserAccordingToMail";
@@ -4,6 +4,7 @@ import android.app.NotificationManager;
 import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.NotificationCompat;
+import android.util.Base64;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GcmListenerService;
@@ -13,9 +14,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import fr.upem.geoplan.R;
 import fr.upem.geoplan.core.planning.Event;
@@ -71,25 +77,50 @@ public class GeoplanGcmListenerService extends GcmListenerService {
                         sendNotification("Réception position utilisateur");
                     }
                     break;
+                case "receivedUserPositions":
+                    synchronized (LockData.lockReceivedUserPositions) {
+                        try {
+                            // Each chunk stands on its own : chunks may be lost or reordered, so
+                            // the positions are merged by user instead of waiting for a whole tick
+                            for (User user : parserToGetUser(new JSONArray(data.getString("users")))) {
+                                LockData.userPositions.put(user.getID(), user);
+                            }
+                            LockData.receivedUserPositions = new ArrayList<>(LockData.userPositions.values());
+                            LockData.doneReceivedUserPositions = true;
+                            LockData.lockReceivedUserPositions.notify();
+                            sendNotification("Réception positions utilisateurs");
+                        }catch(JSONException e){
+                            Log.e("GCMListenerService", e.getMessage());
+                        }
+                    }
+                    break;
                 case "receivedEventsGuested":
                     synchronized (LockData.lockReceivedEventsGuested) {
                         try {
-                            LockData.receivedEventsGuested = parseToGetAllEvent(data);
-                            LockData.doneReceivedEventsGuested = true;
-                            LockData.lockReceivedEventsGuested.notify();
-                            sendNotification("Réception events propriétaire");
+                            if (receiveChunk(data, LockData.pendingEventsGuested,
+                                    DataConstantGcm.ACTION_GET_ALL_EVENTS_GUESTED)) {
+                                LockData.receivedEventsGuested = new ArrayList<>(LockData.pendingEventsGuested);
+                                LockData.pendingEventsGuested.clear();
+                                LockData.doneReceivedEventsGuested = true;
+                                LockData.lockReceivedEventsGuested.notify();
+                                sendNotification("Réception events propriétaire");
+                            }
                         }catch(JSONException e){
                             Log.e("GCMListenerService", e.getMessage());
                         }
                     }
                     break;
                 case "receivedEventsOwned":
-                    synchronized (LockData.lockReceivedEventsGuested) {
+                    synchronized (LockData.lockReceivedEventsOwned) {
                         try {
-                            LockData.receivedEventsOwned = parseToGetAllEvent(data);
-                            LockData.doneReceivedEventsOwned = true;
-                            LockData.lockReceivedEventsOwned.notify();
-                            sendNotification("Réception events propriétaire");
+                            if (receiveChunk(data, LockData.pendingEventsOwned,
+                                    DataConstantGcm.ACTION_GET_ALL_EVENTS_OWNED)) {
+                                LockData.receivedEventsOwned = new ArrayList<>(LockData.pendingEventsOwned);
+                                LockData.pendingEventsOwned.clear();
+                                LockData.doneReceivedEventsOwned = true;
+                                LockData.lockReceivedEventsOwned.notify();
+                                sendNotification("Réception events propriétaire");
+                            }
                         }catch(JSONException e){
                             Log.e("GCMListenerService", e.getMessage());
                         }
@@ -117,6 +148,63 @@ public class GeoplanGcmListenerService extends GcmListenerService {
         }
     }
 
+    /**
+     * Add the events of a chunk of a list to the ones received before,
+     * and ask for the next chunk if there is one.
+     *
+     * @param data    An bundle data containing a chunk of the list.
+     * @param pending The events of the previous chunks, started over on the first chunk.
+     * @param action  The action asking for the list.
+     * @return true if the list is complete.
+     */
+    private boolean receiveChunk(Bundle data, List<Event> pending, String action) throws JSONException {
+        String chunk = data.getString(DataConstantGcm.PAGE_CHUNK);
+        String total = data.getString(DataConstantGcm.PAGE_TOTAL);
+        if (chunk == null || Integer.parseInt(chunk) == 0) {
+            pending.clear();
+        }
+        if (DataConstantGcm.DEFLATE.equals(data.getString(DataConstantGcm.ENCODING))) {
+            data.putString("events", inflate(data.getString("events")));
+            data.remove(DataConstantGcm.ENCODING);
+        }
+        pending.addAll(parseToGetAllEvent(data));
+
+        String token = data.getString(DataConstantGcm.PAGE_TOKEN);
+        if (token != null) {
+            // Ask for the next chunk only once this one is handled
+            new RequestToServer(this).requestNextChunk(action, token);
+            return false;
+        }
+        return chunk == null || total == null || Integer.parseInt(chunk) + 1 >= Integer.parseInt(total);
+    }
+
+    /**
+     * Decode a field deflated by the server.
+     *
+     * @param field The deflated JSON, written in base64.
+     * @return The JSON text.
+     */
+    private String inflate(String field) throws JSONException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.decode(field, Base64.DEFAULT));
+            ByteArrayOutputStream json = new ByteArrayOutputStream(field.length() * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new JSONException("Truncated deflated field");
+                }
+                json.write(buffer, 0, length);
+            }
+            return json.toString("UTF-8");
+        } catch (DataFormatException | IllegalArgumentException | UnsupportedEncodingException e) {
+            throw new JSONException("Invalid deflated field : " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
     /**
      * Parse to get attributes of Event and create an array of event.
      *
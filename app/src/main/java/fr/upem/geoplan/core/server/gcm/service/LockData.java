@@ -1,7 +1,10 @@
 package fr.upem.geoplan.core.server.gcm.service;
 
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import fr.upem.geoplan.core.planning.Event;
 import fr.upem.geoplan.core.session.User;
@@ -20,11 +23,20 @@ final class LockData {
     static boolean doneReceivedUserPosition;
     final static Object lockReceivedUserPosition = new Object();
 
+    static List<User> receivedUserPositions;
+    // Latest position received for each user, by id
+    static Map<String, User> userPositions = new LinkedHashMap<>();
+    static boolean doneReceivedUserPositions;
+    final static Object lockReceivedUserPositions = new Object();
+
     static List<Event> receivedEventsGuested;
+    // Chunks received so far, published in receivedEventsGuested with the last one
+    static List<Event> pendingEventsGuested = new ArrayList<>();
     static boolean doneReceivedEventsGuested;
     final static Object lockReceivedEventsGuested = new Object();
 
     static List<Event> receivedEventsOwned;
+    static List<Event> pendingEventsOwned = new ArrayList<>();
     static boolean doneReceivedEventsOwned;
     final static Object lockReceivedEventsOwned = new Object();
 
@@ -220,6 +220,7 @@ public class RequestToServer {
 
         data.putString("action", DataConstantGcm.ACTION_GET_ALL_EVENTS_OWNED);
         data.putString(DataConstantGcm.USER_ID, userId);
+        data.putString(DataConstantGcm.ACCEPT, DataConstantGcm.DEFLATE);
 
         sendGCMMessage(data);
         return (ArrayList<Event>) extractObjectFromDataLock(DataConstantGcm.RECEIVED_EVENTS_OWNED);
@@ -238,11 +239,27 @@ public class RequestToServer {
 
         data.putString("action", DataConstantGcm.ACTION_GET_ALL_EVENTS_GUESTED);
         data.putString(DataConstantGcm.USER_ID, userId);
+        data.putString(DataConstantGcm.ACCEPT, DataConstantGcm.DEFLATE);
 
         sendGCMMessage(data);
         return (ArrayList<Event>) extractObjectFromDataLock(DataConstantGcm.RECEIVED_EVENTS_GUESTED);
     }
 
+    /**
+     * Ask for the next chunk of a list received in several chunks.
+     *
+     * @param action The action which asked for the list.
+     * @param token  The continuation token received with the previous chunk.
+     */
+    public void requestNextChunk(String action, String token) {
+        Bundle data = new Bundle();
+
+        data.putString("action", action);
+        data.putString(DataConstantGcm.PAGE_TOKEN, token);
+        data.putString(DataConstantGcm.ACCEPT, DataConstantGcm.DEFLATE);
+        sendGCMMessage(data);
+    }
+
 
     public User getUserAccordingToEmail(String emailUser) {
         Bundle data = new Bundle();
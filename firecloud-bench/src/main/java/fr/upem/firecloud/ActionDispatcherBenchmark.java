@@ -0,0 +1,63 @@
+package fr.upem.firecloud;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatching of the upstream messages to their handler, without the database :
+ * the handlers only consume their payload and reply to the device.
+ * The sampled logs are disabled, so the console does not disturb the measures.
+ */
+@State(Scope.Benchmark)
+@Fork(jvmArgsAppend = "-Dfirecloud.log.level=WARN")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActionDispatcherBenchmark {
+
+    private static final String[] ACTIONS = {
+            "createEvent", "createUser", "updatePosition", "addUserToEvent", "removeUserToEvent",
+            "updateEvent", "updateUser", "getAllEventsOwned", "getAllEventsGuested", "getAllUsers"
+    };
+
+    @Param({"small", "large"})
+    public String size;
+
+    private ActionDispatcher dispatcher;
+    private Message message;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        dispatcher = new ActionDispatcher(new ActionHandler.Sender() {
+            @Override
+            public void send(String to, Map<String, Object> payload, Lane lane) {
+                blackhole.consume(payload);
+            }
+        });
+        for (String action : ACTIONS) {
+            dispatcher.register(action, new ActionHandler() {
+                @Override
+                public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                    sender.send(message.getFrom(), payload, Lane.INTERACTIVE);
+                }
+            });
+        }
+        message = new Message(Payloads.registrationId(), "42", Payloads.upstream(size));
+    }
+
+    @Benchmark
+    public void dispatch() {
+        message.setReceivedNanos(System.nanoTime());
+        dispatcher.dispatch(message);
+    }
+}
@@ -0,0 +1,46 @@
+package fr.upem.firecloud;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the downstream message ids, against the UUIDs used before,
+ * by one thread and by several threads sharing the generator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageIdGeneratorBenchmark {
+
+    private final MessageIdGenerator generator = new MessageIdGenerator("0", System.currentTimeMillis());
+
+    @Benchmark
+    public String next() {
+        return generator.next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String nextContended() {
+        return generator.next();
+    }
+
+    @Benchmark
+    public String uuid() {
+        return "m-" + UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String uuidContended() {
+        return "m-" + UUID.randomUUID().toString();
+    }
+}
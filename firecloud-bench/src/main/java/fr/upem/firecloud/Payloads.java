@@ -0,0 +1,102 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Realistic payloads of the application, shared by the benchmarks.
+ */
+final class Payloads {
+
+    private Payloads() {
+
+    }
+
+    /**
+     * Get the payload of an upstream message.
+     * @param size "small" for an updatePosition, "large" for a createEvent with a long description.
+     * @return the data of the message, with its action.
+     */
+    static Map<String, String> upstream(String size) {
+        Map<String, String> data = new HashMap<>();
+        if ("small".equals(size)) {
+            data.put("action", "updatePosition");
+            data.put("userId", "56d5d8e1e4b0a7d2c1f3a9b4");
+            data.put("eventId", "56d5d8e1e4b0a7d2c1f3a9b5");
+            data.put("lat", "48.839261");
+            data.put("lng", "2.585773");
+        } else {
+            data.put("action", "createEvent");
+            data.put("name", "Soir\u00e9e d'int\u00e9gration \"IMAC\" & friends");
+            data.put("description", repeat("Rendez-vous devant le b\u00e2timent Copernic <entr\u00e9e nord>. ", 20));
+            data.put("owners", "[\"56d5d8e1e4b0a7d2c1f3a9b4\"]");
+            data.put("guests", "[\"56d5d8e1e4b0a7d2c1f3a9b6\",\"56d5d8e1e4b0a7d2c1f3a9b7\"]");
+            data.put("lat", "48.839261");
+            data.put("lng", "2.585773");
+            data.put("start_date_time", "1458496800000");
+            data.put("end_date_time", "1458511200000");
+            data.put("type", "party");
+            data.put("cost", "5.0");
+            data.put("color", "-16776961");
+            data.put("image", "https://example.org/events/56d5d8e1e4b0a7d2c1f3a9b5.png");
+        }
+        return data;
+    }
+
+    /**
+     * Get the JSON of an upstream message, as received in the gcm extension.
+     * @param size "small" or "large", see {@link #upstream(String)}.
+     * @return the JSON encoded message.
+     */
+    static String upstreamJson(String size) {
+        Map<String, Object> message = new HashMap<>();
+        message.put("category", "fr.upem.geoplan");
+        message.put("data", upstream(size));
+        message.put("time_to_live", 86400);
+        message.put("message_id", "42");
+        message.put("from", registrationId());
+        return org.json.simple.JSONValue.toJSONString(message);
+    }
+
+    /**
+     * Get the payload of a downstream message.
+     * @param size "small" for a receivedEventId, "large" for a receivedEventsOwned with 20 events.
+     * @return the data of the message.
+     */
+    static Map<String, Object> downstream(String size) {
+        Map<String, Object> payload = new HashMap<>();
+        if ("small".equals(size)) {
+            payload.put("action", "receivedEventId");
+            payload.put("_id", "56d5d8e1e4b0a7d2c1f3a9b5");
+            return payload;
+        }
+        List<Object> events = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> event = new HashMap<String, Object>(upstream("large"));
+            event.remove("action");
+            event.put("_id", "56d5d8e1e4b0a7d2c1f3a9" + (10 + i));
+            events.add(event);
+        }
+        payload.put("action", "receivedEventsOwned");
+        payload.put("events", events);
+        return payload;
+    }
+
+    /**
+     * Get a registration id of the usual length.
+     * @return the registration id.
+     */
+    static String registrationId() {
+        return "dXNlcl9kZXZpY2VfdG9rZW46QVBBOTFiRmtRRXZ3Z2JjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXotX0FCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaMDEyMzQ1Njc4OQ";
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}
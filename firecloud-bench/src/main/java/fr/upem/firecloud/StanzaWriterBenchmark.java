@@ -0,0 +1,80 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing of the downstream messages and of the ACKs, against the
+ * json-simple and String.format path used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StanzaWriterBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private Map<String, Object> payload;
+    private String to;
+    private String json;
+
+    @Setup
+    public void setUp() {
+        payload = Payloads.downstream(size);
+        to = Payloads.registrationId();
+        json = JSONValue.toJSONString(payload);
+    }
+
+    @Benchmark
+    public String message() {
+        return StanzaWriter.message(to, "0:iltg6h2c1a", payload, null, null, true);
+    }
+
+    @Benchmark
+    public String messageJsonSimple() {
+        Map<String, Object> message = new HashMap<>();
+        message.put("to", to);
+        message.put("delay_while_idle", true);
+        message.put("message_id", "0:iltg6h2c1a");
+        message.put("data", payload);
+        return "<message>" + String.format("<%s xmlns=\"%s\">%s</%s>",
+                GcmPacketExtension.GCM_ELEMENT_NAME, GcmPacketExtension.GCM_NAMESPACE,
+                StringUtils.escapeForXML(JSONValue.toJSONString(message)),
+                GcmPacketExtension.GCM_ELEMENT_NAME) + "</message>";
+    }
+
+    @Benchmark
+    public String ack() {
+        return StanzaWriter.ack(to, "42");
+    }
+
+    @Benchmark
+    public String ackJsonSimple() {
+        Map<String, Object> message = new HashMap<>();
+        message.put("message_type", "ack");
+        message.put("to", to);
+        message.put("message_id", "42");
+        return "<message>" + String.format("<%s xmlns=\"%s\">%s</%s>",
+                GcmPacketExtension.GCM_ELEMENT_NAME, GcmPacketExtension.GCM_NAMESPACE,
+                StringUtils.escapeForXML(JSONValue.toJSONString(message)),
+                GcmPacketExtension.GCM_ELEMENT_NAME) + "</message>";
+    }
+
+    @Benchmark
+    public String extensionToXml() {
+        return new GcmPacketExtension(json).toXML();
+    }
+}
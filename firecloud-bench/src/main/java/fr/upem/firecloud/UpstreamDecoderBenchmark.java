@@ -0,0 +1,43 @@
+package fr.upem.firecloud;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the upstream messages, against the json-simple parser used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UpstreamDecoderBenchmark {
+
+    @Param({"small", "large"})
+    public String size;
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        json = Payloads.upstreamJson(size);
+    }
+
+    @Benchmark
+    public Message decode() throws ParseException {
+        return UpstreamDecoder.decode(json);
+    }
+
+    @Benchmark
+    public Object jsonSimple() throws ParseException {
+        return JSONValue.parseWithException(json);
+    }
+}
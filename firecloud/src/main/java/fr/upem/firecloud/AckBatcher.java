@@ -0,0 +1,100 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Groups the ACKs sent on a connection so they are written on the socket together.
+ *
+ * An ACK waits at most a short delay, or until enough ACKs are pending, before
+ * all pending ACKs are written as a single packet. Senders never wait for the
+ * write, so ACKs are pipelined with the handling of the messages.
+ */
+class AckBatcher {
+
+    private static final String TAG = "AckBatcher";
+
+    /**
+     * Writes a packet on the connection.
+     */
+    interface PacketWriter {
+        void write(Packet packet);
+    }
+
+    private final PacketWriter writer;
+    private final ScheduledExecutorService flusher;
+    private final Queue<String> pendingAcks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Creates a new AckBatcher.
+     * @param writer the writer of the batches.
+     * @param flusher the executor running the flushes, it can be shared between connections.
+     */
+    AckBatcher(PacketWriter writer, ScheduledExecutorService flusher) {
+        this.writer = writer;
+        this.flusher = flusher;
+    }
+
+    /**
+     * Adds an ACK to the next batch.
+     * @param ackStanza the XML stanza of the ack, written by {@link StanzaWriter#ack}.
+     */
+    void add(String ackStanza) {
+        pendingAcks.add(ackStanza);
+        int pending = pendingCount.incrementAndGet();
+        if (pending >= ServerConfig.ACK_BATCH_SIZE) {
+            flusher.execute(flushTask);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            flusher.schedule(flushTask, ServerConfig.ACK_BATCH_DELAY_MICROS, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Writes all the pending ACKs.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        while (pendingCount.get() > 0) {
+            StringBuilder batch = new StringBuilder(256);
+            String ackStanza;
+            int count = 0;
+            while (count < ServerConfig.ACK_BATCH_SIZE && (ackStanza = pendingAcks.poll()) != null) {
+                batch.append(ackStanza);
+                count++;
+            }
+            if (count == 0) {
+                return;
+            }
+            pendingCount.addAndGet(-count);
+            try {
+                writer.write(new StanzaPacket(batch.toString()));
+            } catch (RuntimeException e) {
+                // CCS sends the messages again when their ACK is lost
+                Log.w(TAG, count + " ACK(s) could not be written", e);
+            }
+        }
+    }
+
+    /**
+     * Get the number of ACKs waiting to be written.
+     * @return the number of pending ACKs.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+}
@@ -0,0 +1,182 @@
+package fr.upem.firecloud;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches the upstream data messages to the handler of their action.
+ *
+ * For each action, the dispatcher counts the messages and the errors, and
+ * records three latencies : the time spent in the upstream queues, the time
+ * spent in the handler itself, which is mostly the database, and the time
+ * spent queuing the replies.
+ */
+class ActionDispatcher {
+
+    private static final String TAG = "ActionDispatcher";
+
+    /**
+     * Counters and latencies of an action.
+     */
+    static class ActionStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final LatencyHistogram queueLatency = new LatencyHistogram();
+        private final LatencyHistogram databaseLatency = new LatencyHistogram();
+        private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+        /**
+         * Get the number of messages handled.
+         * @return the number of messages, including the failed ones.
+         */
+        long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the number of messages whose handler threw an exception.
+         * @return the number of errors.
+         */
+        long getErrorCount() {
+            return errors.get();
+        }
+
+        /**
+         * Get the time between the receipt of the messages and the start of their handler.
+         * @return the queueing latencies.
+         */
+        LatencyHistogram getQueueLatency() {
+            return queueLatency;
+        }
+
+        /**
+         * Get the time spent in the handlers, without the time spent sending the replies.
+         * @return the database latencies.
+         */
+        LatencyHistogram getDatabaseLatency() {
+            return databaseLatency;
+        }
+
+        /**
+         * Get the time spent writing and queuing the replies, for the messages with replies.
+         * @return the send latencies.
+         */
+        LatencyHistogram getSendLatency() {
+            return sendLatency;
+        }
+    }
+
+    /**
+     * Measures the time spent sending the replies of a message.
+     */
+    private static class TimedSender implements ActionHandler.Sender {
+        private final ActionHandler.Sender sender;
+        private long sendNanos;
+
+        private TimedSender(ActionHandler.Sender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public void send(String to, Map<String, Object> payload, Lane lane) {
+            long start = System.nanoTime();
+            try {
+                sender.send(to, payload, lane);
+            } finally {
+                sendNanos += System.nanoTime() - start;
+            }
+        }
+    }
+
+    private final Map<String, ActionHandler> handlers = new HashMap<>();
+    private final Map<String, ActionStats> stats = new HashMap<>();
+    private final ActionHandler.Sender sender;
+    private final AtomicLong unknownActions = new AtomicLong();
+
+    /**
+     * Creates a new ActionDispatcher, without any handler.
+     * @param sender the sender of the replies of the handlers.
+     */
+    ActionDispatcher(ActionHandler.Sender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * Registers the handler of an action.
+     * All the handlers must be registered before the first message is dispatched.
+     * @param action the action, as sent in the payload of the messages.
+     * @param handler the handler of the action.
+     */
+    void register(String action, ActionHandler handler) {
+        handlers.put(action, handler);
+        stats.put(action, new ActionStats());
+    }
+
+    /**
+     * Tells if an action has a handler.
+     * @param action the action, may be null.
+     * @return true if the action has been registered.
+     */
+    boolean handles(String action) {
+        return action != null && handlers.containsKey(action);
+    }
+
+    /**
+     * Handles an upstream data message with the handler of its action.
+     * The exceptions thrown by the handler are logged and counted.
+     * @param message the message to handle.
+     */
+    void dispatch(Message message) {
+        String action = message.getPayload().get("action");
+        ActionHandler handler = action == null ? null : handlers.get(action);
+        if (handler == null) {
+            unknownActions.incrementAndGet();
+            Log.w(TAG, "Unknown action " + action + " from " + message.getFrom() + ", the message is ignored.");
+            return;
+        }
+        ActionStats actionStats = stats.get(action);
+        long start = System.nanoTime();
+        actionStats.count.incrementAndGet();
+        if (message.getReceivedNanos() != 0) {
+            actionStats.queueLatency.record(start - message.getReceivedNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (Log.isSampled(action)) {
+            Log.i(TAG, "Handling " + action + " from " + message.getFrom() + " (sampled)");
+        }
+
+        Map<String, Object> payload = new HashMap<String, Object>(message.getPayload());
+        payload.remove("action");
+        TimedSender timedSender = new TimedSender(sender);
+        try {
+            handler.handle(message, payload, timedSender);
+        } catch (RuntimeException e) {
+            actionStats.errors.incrementAndGet();
+            Log.e(TAG, "An error occurred while handling " + action + " from " + message.getFrom(), e);
+        } finally {
+            long handlerNanos = System.nanoTime() - start;
+            actionStats.databaseLatency.record(handlerNanos - timedSender.sendNanos, TimeUnit.NANOSECONDS);
+            if (timedSender.sendNanos > 0) {
+                actionStats.sendLatency.record(timedSender.sendNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Get the counters and latencies of each registered action.
+     * @return the stats by action.
+     */
+    Map<String, ActionStats> getStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Get the number of messages ignored because their action has no handler.
+     * @return the number of messages with an unknown or missing action.
+     */
+    long getUnknownActionCount() {
+        return unknownActions.get();
+    }
+}
@@ -0,0 +1,24 @@
+package fr.upem.firecloud;
+
+import java.util.Map;
+
+/**
+ * Handles the upstream data messages of one action, such as createEvent.
+ */
+interface ActionHandler {
+
+    /**
+     * Sends downstream messages on behalf of a handler, in the lane of their kind.
+     */
+    interface Sender {
+        void send(String to, Map<String, Object> payload, Lane lane);
+    }
+
+    /**
+     * Handles an upstream data message.
+     * @param message the message, its payload must not be modified.
+     * @param payload a copy of the payload of the message, without its action, that the handler may modify.
+     * @param sender the sender of the replies.
+     */
+    void handle(Message message, Map<String, Object> payload, Sender sender);
+}
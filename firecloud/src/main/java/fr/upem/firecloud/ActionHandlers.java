@@ -0,0 +1,221 @@
+package fr.upem.firecloud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The handlers of the actions sent by the application.
+ */
+final class ActionHandlers {
+
+    /**
+     * Reads the items of a list query in the database.
+     */
+    private interface ListQuery {
+        Object load(String userId);
+    }
+
+    private static final String GET_ALL_EVENTS_OWNED = "getAllEventsOwned";
+    private static final String GET_ALL_EVENTS_GUESTED = "getAllEventsGuested";
+    private static final String GET_ALL_USERS = "getAllUsers";
+    private static final String SYNC_EVENTS = "syncEvents";
+
+    private ActionHandlers() {
+
+    }
+
+    /**
+     * Registers the handler of every action of the application.
+     * @param dispatcher the dispatcher in which the handlers are registered.
+     * @param dataBaseCommunicator the database used by the handlers.
+     * @param positionCoalescer the coalescer of the position updates.
+     * @param responseCache the answers of the list queries, invalidated by the writes.
+     * @param responsePager the sender of the chunks of the answers of the list queries.
+     */
+    static void registerAll(ActionDispatcher dispatcher, final DataBaseCommunicator dataBaseCommunicator,
+                            final PositionCoalescer positionCoalescer, final ResponseCache responseCache,
+                            final ResponsePager responsePager) {
+        dispatcher.register("createEvent", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                //_id generated automatically
+                Set<String> members = dataBaseCommunicator.createEvent(payload);
+                if (payload.get("_id") == null) {
+                    return;
+                }
+                invalidateEventLists(responseCache, members);
+                Map<String, Object> map = new HashMap<>();
+                map.put("_id", payload.get("_id"));
+                map.put("action", "receivedEventId");
+                sender.send(message.getFrom(), map, Lane.INTERACTIVE);
+            }
+        });
+        dispatcher.register("createUser", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                payload.put("device", message.getFrom());
+                dataBaseCommunicator.createUser(payload);
+                responseCache.invalidate(GET_ALL_USERS);
+            }
+        });
+        dispatcher.register("updatePosition", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                //Receive userId, lat, lng, eventId
+                //Written and sent to the owners on the next tick of the coalescer
+                String eventId = (String) payload.remove("eventId");
+                positionCoalescer.update((String) payload.remove("userId"), eventId, payload);
+            }
+        });
+        dispatcher.register("addUserToEvent", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                payload.put("_id", payload.get("userId"));
+                Set<String> members = dataBaseCommunicator.addUserToEvent(payload);
+                if (members != null && payload.get("userId") instanceof String) {
+                    members.add((String) payload.get("userId"));
+                }
+                invalidateEventLists(responseCache, members);
+            }
+        });
+        dispatcher.register("removeUserToEvent", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                payload.put("_id", payload.get("userId"));
+                // Members before the write, with the removed user
+                invalidateEventLists(responseCache, dataBaseCommunicator.removeUserToEvent(payload));
+            }
+        });
+        dispatcher.register("updateEvent", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                invalidateEventLists(responseCache, dataBaseCommunicator.updateEvent(payload));
+            }
+        });
+        dispatcher.register("updateUser", new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                payload.put("device", message.getFrom());
+                dataBaseCommunicator.updateUser(payload);
+                responseCache.invalidate(GET_ALL_USERS);
+            }
+        });
+        registerListQuery(dispatcher, responseCache, responsePager, GET_ALL_EVENTS_OWNED,
+                "receivedEventsOwned", "events", true, new ListQuery() {
+                    @Override
+                    public Object load(String userId) {
+                        return dataBaseCommunicator.getAllEventsOwned(userId).get("events");
+                    }
+                });
+        registerListQuery(dispatcher, responseCache, responsePager, GET_ALL_EVENTS_GUESTED,
+                "receivedEventsGuested", "events", true, new ListQuery() {
+                    @Override
+                    public Object load(String userId) {
+                        return dataBaseCommunicator.getAllEventsGuested(userId).get("events");
+                    }
+                });
+        registerListQuery(dispatcher, responseCache, responsePager, GET_ALL_USERS,
+                "receivedUsers", "users", false, new ListQuery() {
+                    @Override
+                    public Object load(String userId) {
+                        return dataBaseCommunicator.getUsers().get("users");
+                    }
+                });
+        dispatcher.register(SYNC_EVENTS, new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                //receive : userId and sinceVersion, or the token of the previous chunk
+                ResponsePager.Token token = ResponsePager.Token.parse((String) payload.get("token"));
+                Object since = payload.get("sinceVersion");
+                String userId = (String) payload.get("userId");
+                if (token != null && token.getKey() != null) {
+                    // The key of a token is sinceVersion:userId
+                    String[] key = token.getKey().split(":", 2);
+                    since = key[0];
+                    userId = key.length > 1 ? key[1] : null;
+                }
+                long sinceVersion = 0;
+                if (since instanceof Number) {
+                    sinceVersion = ((Number) since).longValue();
+                } else if (since instanceof String) {
+                    try {
+                        sinceVersion = Long.parseLong((String) since);
+                    } catch (NumberFormatException e) {
+                        // Unreadable version : everything
+                    }
+                }
+                Map<String, Object> changes = dataBaseCommunicator.getEventChanges(userId, sinceVersion);
+                Map<String, Object> extra = new HashMap<>();
+                extra.put("version", changes.get("version"));
+                if (changes.containsKey("reset")) {
+                    extra.put("reset", true);
+                }
+                responsePager.send(sender, message.getFrom(), "receivedEventChanges", "changes",
+                        sinceVersion + ":" + userId,
+                        PagedResponse.of(changes.get("changes"), ServerConfig.PAGE_CHUNK_BYTES,
+                                PayloadCodec.acceptsDeflate(payload)),
+                        token, parsePrefetch(payload.get("prefetch")), extra);
+            }
+        });
+    }
+
+    /**
+     * Registers the handler of a list query, answered from the cache, in chunks.
+     *
+     * The query carries a userId, or the continuation token of the previous
+     * chunk, and optionally the number of chunks to send at once in "prefetch"
+     * and "accept":"deflate" for the deflated chunks.
+     */
+    private static void registerListQuery(ActionDispatcher dispatcher, final ResponseCache responseCache,
+                                          final ResponsePager responsePager, final String query,
+                                          final String replyAction, final String field, final boolean byUser,
+                                          final ListQuery listQuery) {
+        dispatcher.register(query, new ActionHandler() {
+            @Override
+            public void handle(Message message, Map<String, Object> payload, Sender sender) {
+                ResponsePager.Token token = ResponsePager.Token.parse((String) payload.get("token"));
+                String userId = null;
+                if (byUser) {
+                    userId = token != null ? token.getKey() : (String) payload.get("userId");
+                }
+                final String loadedUserId = userId;
+                PagedResponse response = responseCache.get(query, userId, PayloadCodec.acceptsDeflate(payload),
+                        new ResponseCache.Loader() {
+                            @Override
+                            public Object load() {
+                                return listQuery.load(loadedUserId);
+                            }
+                        });
+                responsePager.send(sender, message.getFrom(), replyAction, field, userId, response, token,
+                        parsePrefetch(payload.get("prefetch")));
+            }
+        });
+    }
+
+    private static int parsePrefetch(Object prefetch) {
+        if (prefetch == null) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(prefetch.toString());
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Invalidates the lists of events of the users of an event which changed.
+     * @param responseCache the cache of the list queries.
+     * @param members the _id of the users of the event, null if unknown.
+     */
+    private static void invalidateEventLists(ResponseCache responseCache, Set<String> members) {
+        if (members == null) {
+            responseCache.invalidateAll(GET_ALL_EVENTS_OWNED);
+            responseCache.invalidateAll(GET_ALL_EVENTS_GUESTED);
+        } else {
+            responseCache.invalidate(GET_ALL_EVENTS_OWNED, members);
+            responseCache.invalidate(GET_ALL_EVENTS_GUESTED, members);
+        }
+    }
+}
@@ -1,29 +1,23 @@
 package fr.upem.firecloud;
 
-import org.jivesoftware.smack.ConnectionConfiguration;
-import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
-import org.jivesoftware.smack.ConnectionListener;
-import org.jivesoftware.smack.PacketInterceptor;
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
-import org.jivesoftware.smack.packet.DefaultPacketExtension;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
-import org.jivesoftware.smack.util.StringUtils;
-import org.json.simple.JSONValue;
 import org.json.simple.parser.ParseException;
 import org.xmlpull.v1.XmlPullParser;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-
-import javax.net.ssl.SSLSocketFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Sample Smack implementation of a client for GCM Cloud Connection Server. This
@@ -33,29 +27,52 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class CcsClient {
 
-    private static final String GCM_SERVER = "gcm.googleapis.com";
-    private static final int GCM_PORT = 5235;
-
-    private static final String GCM_ELEMENT_NAME = "gcm";
-    private static final String GCM_NAMESPACE = "google:mobile:data";
-
-    private XMPPConnection connection;
+    private static final String TAG = "CcsClient";
 
     private final String apiKey;
     private final long projectId;
     private final boolean debuggable;
     private final DataBaseCommunicator dataBaseCommunicator = new DataBaseCommunicator();
-
-    /**
-     * Indicates whether the connection is in draining state, which means that it
-     * will not accept any new downstream messages.
-     */
-    protected volatile boolean connectionDraining = false;
+    private final PartitionLeases partitionLeases = new PartitionLeases(dataBaseCommunicator, ServerConfig.NODE_ID,
+            ServerConfig.PARTITIONS, ServerConfig.LEASE_TTL_MILLIS, ServerConfig.CLUSTER_ENABLED);
+    private final CcsConnectionPool connectionPool;
+    private final DownstreamSender downstreamSender;
+    private final DownstreamTransport downstreamTransport;
+    private final PositionCoalescer positionCoalescer;
+    private final ChangeLogCompactor changeLogCompactor = new ChangeLogCompactor(dataBaseCommunicator,
+            partitionLeases, ServerConfig.CHANGE_LOG_RETENTION_MILLIS);
+    private final ResponseCache responseCache = new ResponseCache(ServerConfig.RESPONSE_CACHE_BYTES,
+            ServerConfig.CLUSTER_ENABLED
+                    ? TimeUnit.MILLISECONDS.toNanos(ServerConfig.RESPONSE_CACHE_CLUSTER_MAX_AGE_MILLIS)
+                    : Long.MAX_VALUE,
+            ServerConfig.PAGE_CHUNK_BYTES);
+    private final ResponsePager responsePager = new ResponsePager(ServerConfig.PAGE_MAX_PREFETCH,
+            ServerConfig.PAGE_PACING_MILLIS);
+    private final ActionDispatcher actionDispatcher;
+    private final PartitionedExecutor upstreamExecutor = new PartitionedExecutor("upstream-worker",
+            ServerConfig.UPSTREAM_WORKERS, ServerConfig.UPSTREAM_QUEUE_CAPACITY);
+    private final RateLimiter rateLimiter = new RateLimiter(ServerConfig.RATE_LIMIT_DEFAULT,
+            ServerConfig.RATE_LIMIT_ACTIONS, ServerConfig.RATE_LIMIT_POLICY, ServerConfig.RATE_LIMIT_MAX_DELAY_MILLIS,
+            ServerConfig.CCS_CONNECTIONS);
+    private final DedupeWindow dedupeWindow = new DedupeWindow(ServerConfig.DEDUPE_CAPACITY,
+            TimeUnit.MILLISECONDS.toNanos(ServerConfig.DEDUPE_WINDOW_MILLIS));
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean accepting;
+    private final MessageIdGenerator messageIdGenerator = new MessageIdGenerator(ServerConfig.NODE_ID,
+            System.currentTimeMillis());
+    private final ScheduledExecutorService ackFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ccs-ack-flusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     public CcsClient(long projectId, String apiKey, boolean debuggable) {
         // Add GcmPacketExtension
-        ProviderManager.getInstance().addExtensionProvider(GCM_ELEMENT_NAME,
-                GCM_NAMESPACE, new PacketExtensionProvider() {
+        ProviderManager.getInstance().addExtensionProvider(GcmPacketExtension.GCM_ELEMENT_NAME,
+                GcmPacketExtension.GCM_NAMESPACE, new PacketExtensionProvider() {
 
                     @Override
                     public PacketExtension parseExtension(XmlPullParser parser)
@@ -67,372 +84,441 @@ public class CcsClient {
         this.apiKey = apiKey;
         this.projectId = projectId;
         this.debuggable = debuggable;
+        this.connectionPool = new CcsConnectionPool(ServerConfig.CCS_CONNECTIONS,
+                new CcsConnectionPool.ConnectionFactory() {
+                    @Override
+                    public CcsConnection open() throws XMPPException {
+                        return openConnection();
+                    }
+                });
+        this.downstreamSender = new DownstreamSender(ServerConfig.OUTBOUND_QUEUE_CAPACITY, connectionPool);
+        if ("http".equals(ServerConfig.DOWNSTREAM_TRANSPORT)) {
+            this.downstreamTransport = new HttpTransport(ServerConfig.HTTP_URL, apiKey, ServerConfig.HTTP_SENDERS,
+                    ServerConfig.OUTBOUND_QUEUE_CAPACITY, ServerConfig.HTTP_TIMEOUT_MILLIS);
+        } else {
+            XmppTransport xmppTransport = new XmppTransport(downstreamSender, messageIdGenerator);
+            // The nacked stanzas and the ones whose ack never came are queued again in the transport
+            connectionPool.setRetryScheduler(xmppTransport.getRetryScheduler());
+            this.downstreamTransport = xmppTransport;
+        }
+        this.positionCoalescer = new PositionCoalescer(dataBaseCommunicator, partitionLeases,
+                new PositionCoalescer.FanOut() {
+                    @Override
+                    public void send(List<String> devices, Map<String, Object> payload) {
+                        sendDownstreamMessage(devices, payload, Lane.BEST_EFFORT);
+                    }
+                });
+        this.actionDispatcher = new ActionDispatcher(new ActionHandler.Sender() {
+            @Override
+            public void send(String to, Map<String, Object> payload, Lane lane) {
+                sendDownstreamMessage(Collections.singletonList(to), payload, lane);
+            }
+        });
+        ActionHandlers.registerAll(actionDispatcher, dataBaseCommunicator, positionCoalescer, responseCache,
+                responsePager);
     }
 
 
-
     /**
-     * XMPP Packet Extension for GCM Cloud Connection Server.
+     * Queues a downstream message to GCM, for one or several devices.
+     * The caller is blocked while the outbound queue of the lane is full.
+     * @param devices RegistrationIds of the target devices.
+     * @param payload Message content intended for the application.
+     * @param lane the outbound lane of the message.
      */
-    private class GcmPacketExtension extends DefaultPacketExtension {
-
-        String json;
-
-        private GcmPacketExtension(String json) {
-            super(GCM_ELEMENT_NAME, GCM_NAMESPACE);
-            this.json = json;
-        }
-
-        private String getJson() {
-            return json;
-        }
-
-        @Override
-        public String toXML() {
-            return String.format("<%s xmlns=\"%s\">%s</%s>",
-                    GCM_ELEMENT_NAME, GCM_NAMESPACE,
-                    StringUtils.escapeForXML(json), GCM_ELEMENT_NAME);
-        }
-
-        private Packet toPacket() {
-            org.jivesoftware.smack.packet.Message message = new org.jivesoftware.smack.packet.Message();
-            message.addExtension(this);
-            return message;
+    private void sendDownstreamMessage(List<String> devices, Map<String, Object> payload, Lane lane) {
+        try {
+            downstreamTransport.send(devices, payload, lane);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while queuing a message to " + devices.size() + " devices, it is dropped.");
         }
     }
 
-
     /**
-     * Returns a random message id to uniquely identify a message.
-     *
-     * Note: This is generated by a pseudo random number generator for
-     * illustration purpose, and is not guaranteed to be unique.
+     * Get the number of downstream messages waiting to be sent.
+     * @return the depth of the outbound queue.
      */
-    private String getRandomMessageId() {
-        return "m-" + UUID.randomUUID().toString();
+    public int getOutboundQueueDepth() {
+        return downstreamTransport.getQueueDepth();
     }
 
     /**
-     * Sends a packet with contents provided.
+     * Get the number of downstream messages of a lane waiting to be sent.
+     * @param lane the lane.
+     * @return the depth of the outbound queue of the lane.
      */
-    private void send(String jsonRequest) {
-        Packet request = new GcmPacketExtension(jsonRequest).toPacket();
-        connection.sendPacket(request);
+    int getOutboundQueueDepth(Lane lane) {
+        return downstreamTransport.getQueueDepth(lane);
     }
 
     /**
-     * Sends a downstream message to GCM.
-     *
+     * Get the number of downstream messages dropped before being sent because they were too old.
+     * @return the number of messages aged out.
      */
-    private void sendDownstreamMessage(String jsonRequest) {
-        System.out.println("Trying to send downstream message...");
-        while(connectionDraining);
-        send(jsonRequest);
-        System.out.println("Message sent");
+    long getAgedOutCount() {
+        return downstreamTransport.getAgedOutCount();
     }
 
 
     /**
      * Connects to GCM Cloud Connection Server using the supplied credentials.
+     * Opens all the connections of the pool.
      * @throws XMPPException
      */
     public void connect() throws XMPPException {
-        ConnectionConfiguration config = new ConnectionConfiguration(GCM_SERVER, GCM_PORT);
-        config.setSecurityMode(SecurityMode.enabled);
-        config.setReconnectionAllowed(true);
-        config.setRosterLoadedAtLogin(false);
-        config.setSendPresence(false);
-        config.setSocketFactory(SSLSocketFactory.getDefault());
-
-        // NOTE: Set to true to launch a window with information about packets sent and received
-        config.setDebuggerEnabled(debuggable);
-
-        // -Dsmack.debugEnabled=true
-        XMPPConnection.DEBUG_ENABLED = true;
-
-        connection = new XMPPConnection(config);
-        connection.connect();
-
-        connection.addConnectionListener(new ConnectionListener() {
+        // -Dfirecloud.log.packets=true
+        XMPPConnection.DEBUG_ENABLED = Log.isPacketDumpEnabled();
 
-            @Override
-            public void reconnectionSuccessful() {
-                System.out.println("The reconnection is successful.");
-            }
+        if (ServerConfig.CLUSTER_ENABLED && "0".equals(ServerConfig.NODE_ID)) {
+            Log.w(TAG, "Cluster mode with the default node id, set -Dfirecloud.node.id on each node.");
+        }
+        partitionLeases.start();
+        accepting = true;
+        upstreamExecutor.start();
+        connectionPool.open();
+        Log.i(TAG, "The project " + projectId + " has been correctly recognized by Google with the right ApiKey.");
+
+        downstreamTransport.start();
+        positionCoalescer.start(ServerConfig.POSITION_TICK_MILLIS);
+        changeLogCompactor.start(ServerConfig.CHANGE_LOG_COMPACTION_MILLIS, ServerConfig.CHANGE_LOG_SEQUENCING_MILLIS);
+    }
 
-            @Override
-            public void reconnectionFailed(Exception e) {
-                System.out.println("The reconnection failed with this exception :\n" + e);
+    /**
+     * Stops the client without losing the messages already accepted.
+     *
+     * New upstream messages are not acknowledged anymore, so CCS delivers them
+     * again later, then the upstream messages already queued are handled, the
+     * buffered positions are written and sent, and the downstream messages
+     * are sent and acknowledged, all within the given time. The pending ACKs
+     * are written and finally the connections and the database are closed.
+     * @param timeout the time given to the messages to be handled and sent.
+     * @param unit the unit of the timeout.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        accepting = false;
+        Log.i(TAG, "Stopping, " + getUpstreamQueueDepth() + " upstream and " + getOutboundQueueDepth()
+                + " downstream messages are waiting.");
+        try {
+            // The delayed messages are queued before the workers stop
+            rateLimiter.stop(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            upstreamExecutor.shutdown();
+            if (!upstreamExecutor.awaitTermination(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                Log.w(TAG, getUpstreamQueueDepth() + " upstream messages have not been handled in time.");
             }
-
-            @Override
-            public void reconnectingIn(int seconds) {
-                System.out.println("The reconnection will try again in " + seconds + " seconds.");
+            responsePager.stop(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            positionCoalescer.stop(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+            changeLogCompactor.stop();
+            partitionLeases.stop();
+            if (!downstreamTransport.awaitEmpty(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                Log.w(TAG, getOutboundQueueDepth() + " downstream messages have not been sent in time.");
             }
-
-            @Override
-            public void connectionClosedOnError(Exception e) {
-                System.out.println("The connection closed with an exception :\n" + e);
+            if (!connectionPool.awaitReceipts(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                Log.w(TAG, "Some downstream messages have not been acknowledged in time.");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while stopping, the remaining messages are dropped.");
+        }
+        connectionPool.flushAcks();
+
+        upstreamExecutor.stop();
+        downstreamTransport.stop();
+        connectionPool.close();
+        ackFlusher.shutdownNow();
+        dataBaseCommunicator.close();
+        Log.i(TAG, "Stopped.");
+    }
 
-            @Override
-            public void connectionClosed() {
-                System.out.println("The connection has been closed.");
-            }
-        });
+    private static long remainingNanos(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
 
-        // Handle incoming packets
-        connection.addPacketListener(new PacketListener() {
+    /**
+     * Opens a new connection to GCM Cloud Connection Server.
+     * @return the new connection, logged in.
+     * @throws XMPPException if the connection or the login failed.
+     */
+    private CcsConnection openConnection() throws XMPPException {
+        final CcsConnection connection = new CcsConnection("ccs-" + connectionCount.incrementAndGet(), debuggable,
+                ackFlusher);
+        connection.connect(projectId, apiKey, new PacketListener() {
 
             @Override
             public void processPacket(Packet packet) {
-                System.out.println("The following packet has been received :\n" + packet.toXML());
+                if (Log.isPacketDumpEnabled()) {
+                    Log.i(TAG, "The following packet has been received :\n" + packet.toXML());
+                }
                 org.jivesoftware.smack.packet.Message incomingMessage = (org.jivesoftware.smack.packet.Message) packet;
                 GcmPacketExtension gcmPacket
-                        = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
+                        = (GcmPacketExtension) incomingMessage.getExtension(GcmPacketExtension.GCM_NAMESPACE);
                 String json = gcmPacket.getJson();
                 try {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> jsonMap
-                            = (Map<String, Object>) JSONValue.parseWithException(json);
-                    handleMessage(jsonMap);
+                    handleMessage(UpstreamDecoder.decode(json), connection);
                 } catch (ParseException e) {
-                    System.err.println("An error occurred while parsing the following json :\n" + json + "\n" + e);
+                    Log.e(TAG, "An error occurred while parsing the following json :\n" + json, e);
                 }
             }
-        }, new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class));
-
-        // Log all outgoing packets
-        connection.addPacketInterceptor(new PacketInterceptor() {
-            @Override
-            public void interceptPacket(Packet packet) {
-                System.out.println("Trying to send the following packet :\n" + packet.toXML());
-            }
-        }, new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class));
-
-        connection.login(projectId + "@gcm.googleapis.com", apiKey);
-        System.out.println("The project " + projectId + " has been correctly recognized by Google with the right ApiKey.");
+        });
+        return connection;
     }
 
-    private void handleMessage(Map<String, Object> jsonMap) {
-        // present for "ack"/"nack", null otherwise
-        Object messageType = jsonMap.get("message_type");
+    private void handleMessage(Message msg, CcsConnection connection) {
+        // present for "ack"/"nack"/"control", null otherwise
+        String messageType = msg.getMessageType();
 
         if (messageType == null) {
-            Message msg = getMessage(jsonMap);
             // Normal upstream data message
-            handleIncomingDataMessage(msg);
-            // Send ACK to CCS
-            String ack = createJsonAck(msg.getFrom(), msg.getMessageId());
-            send(ack);
-        } else if ("ack".equals(messageType.toString())) {
+            handleUpstreamMessage(msg, connection);
+        } else if ("ack".equals(messageType)) {
             // Process Ack
-            handleAckReceipt(jsonMap);
-        } else if ("nack".equals(messageType.toString())) {
+            handleAckReceipt(msg, connection);
+        } else if ("nack".equals(messageType)) {
             // Process Nack
-            handleNackReceipt(jsonMap);
+            handleNackReceipt(msg, connection);
+        } else if ("control".equals(messageType)) {
+            // Process Control
+            handleControlMessage(msg, connection);
         } else {
-            System.err.println("The message_type received (" + messageType + ") is not one from Google (ack or nack)");
+            Log.e(TAG, "The message_type received (" + messageType + ") is not one from Google (ack, nack or control)");
+        }
+    }
+
+    /**
+     * Queues an upstream data message on the worker of its sender, so the
+     * messages of a device are handled in order while the messages of
+     * different devices are handled in parallel.
+     *
+     * The message is acknowledged as soon as it is queued, so CCS credits do
+     * not depend on the time spent in the database. A message delayed by the
+     * rate limit, and the messages of the same device after it, are queued and
+     * acknowledged once its token is available. A message delivered again
+     * by CCS is acknowledged again, but not handled twice.
+     */
+    private void handleUpstreamMessage(final Message msg, final CcsConnection connection) {
+        if (!accepting) {
+            // Stopping : without its ACK, CCS will deliver the message again
+            return;
+        }
+        msg.setReceivedNanos(System.nanoTime());
+        if (!dedupeWindow.markSeen(msg.getFrom(), msg.getMessageId())) {
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "The upstream message " + msg.getMessageId() + " from " + msg.getFrom()
+                        + " has already been received, it is only acknowledged.");
+            }
+            connection.sendAck(msg.getFrom(), msg.getMessageId());
+            return;
+        }
+        final Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                actionDispatcher.dispatch(msg);
+            }
+        };
+        String action = msg.getPayload().get("action");
+        // The unknown actions are counted and ignored by the dispatcher
+        long delayNanos = actionDispatcher.handles(action) ? rateLimiter.acquire(msg.getFrom(), action) : 0;
+        if (delayNanos < 0) {
+            if (Log.isLoggable(Log.DEBUG)) {
+                Log.d(TAG, "The upstream message " + msg.getMessageId() + " from " + msg.getFrom()
+                        + " is over the rate limit of " + action + ", it is dropped.");
+            }
+            connection.sendAck(msg.getFrom(), msg.getMessageId());
+            return;
+        }
+        Runnable queue = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upstreamExecutor.execute(msg.getFrom(), dispatch);
+                    // Send ACK to CCS, on the connection which received the message
+                    connection.sendAck(msg.getFrom(), msg.getMessageId());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dedupeWindow.forget(msg.getFrom(), msg.getMessageId());
+                    Log.w(TAG, "Interrupted while queuing the upstream message " + msg.getMessageId()
+                            + ", CCS will send it again.");
+                }
+            }
+        };
+        if (!rateLimiter.hold(msg.getFrom(), queue, delayNanos)) {
+            queue.run();
         }
     }
 
     /**
-     * Creates a Message from the json of the message.
+     * Get the counters and latencies of each action of the upstream messages.
+     * @return the stats by action.
      */
-    private Message getMessage(Map<String, Object> jsonObject) {
-        String from = jsonObject.get("from").toString();
+    Map<String, ActionDispatcher.ActionStats> getActionStats() {
+        return actionDispatcher.getStats();
+    }
 
-        // unique id of this message
-        String messageId = jsonObject.get("message_id").toString();
+    /**
+     * Get the number of upstream messages delivered again by CCS and not handled twice.
+     * @return the number of duplicates.
+     */
+    long getDuplicateCount() {
+        return dedupeWindow.getDuplicateCount();
+    }
 
-        @SuppressWarnings("unchecked")
-        Map<String, String> payload = (Map<String, String>) jsonObject.get("data");
+    /**
+     * Get the number of upstream messages dropped because of the rate limit, by action.
+     * @return the counts by action.
+     */
+    Map<String, Long> getRateLimitedCounts() {
+        return rateLimiter.getShedCounts();
+    }
 
-        return new Message(from, messageId, payload);
+    /**
+     * Get the number of upstream messages delayed because of the rate limit, by action.
+     * @return the counts by action.
+     */
+    Map<String, Long> getRateDelayedCounts() {
+        return rateLimiter.getDelayedCounts();
     }
 
     /**
-     * Handles an ACK.
-     *
-     * By default, it only logs a INFO message, but subclasses could override it
-     * to properly handle ACKS.
+     * Get the number of token buckets of the rate limit which are not full.
+     * @return the number of buckets.
      */
-    private void handleAckReceipt(Map<String, Object> jsonObject) {
-        String messageId = jsonObject.get("message_id").toString();
-        String from = jsonObject.get("from").toString();
-        System.out.println("Ack received : " + from);
-        System.out.println("Message id : " + messageId);
+    int getRateLimitBucketCount() {
+        return rateLimiter.getBucketCount();
     }
 
     /**
-     * Handles a NACK.
-     *
-     * By default, it only logs a INFO message, but subclasses could override it
-     * to properly handle NACKS.
+     * Get the number of upstream messages ignored because of their action.
+     * @return the number of messages with an unknown or missing action.
      */
-    private void handleNackReceipt(Map<String, Object> jsonObject) {
-        String messageId = jsonObject.get("message_id").toString();
-        String from = jsonObject.get("from").toString();
-        System.out.println("Nack received from : " + from);
-        System.out.println("Something might be wrong.");
-        System.out.println("Message id : " + messageId);
+    long getUnknownActionCount() {
+        return actionDispatcher.getUnknownActionCount();
     }
 
     /**
-     * Creates a JSON encoded ACK message for an upstream message received
-     * from an application.
-     *
-     * @param to RegistrationId of the device who sent the upstream message.
-     * @param messageId messageId of the upstream message to be acknowledged to CCS.
-     * @return JSON encoded ack.
+     * Get the time between the sending of the downstream messages and their ack or nack.
+     * @return the ack round-trip latencies.
+     */
+    LatencyHistogram getAckLatency() {
+        return connectionPool.getAckLatency();
+    }
+
+    /**
+     * Get the number of downstream messages waiting for their ack on each connection.
+     * @return the in-flight count by connection name.
+     */
+    Map<String, Integer> getInFlightCounts() {
+        return connectionPool.getInFlightCounts();
+    }
+
+    /**
+     * Get the time spent writing the buffered positions in the database.
+     * @return the latencies of the bulk writes.
+     */
+    LatencyHistogram getPositionWriteLatency() {
+        return positionCoalescer.getWriteLatency();
+    }
+
+    /**
+     * Get the number of positions waiting for the next tick.
+     * @return the number of buffered positions.
+     */
+    int getPendingPositionCount() {
+        return positionCoalescer.getPendingCount();
+    }
+
+    /**
+     * Get the number of positions replaced by a newer one before the tick.
+     * @return the number of superseded positions.
+     */
+    long getSupersededPositionCount() {
+        return positionCoalescer.getSupersededCount();
+    }
+
+    /**
+     * Get the number of positions handed off to the nodes owning their event.
+     * @return the number of handed off positions.
+     */
+    long getHandedOffPositionCount() {
+        return positionCoalescer.getHandedOffCount();
+    }
+
+    /**
+     * Get the number of partitions owned by this node.
+     * @return the number of owned partitions.
      */
-    private static String createJsonAck(String to, String messageId) {
-        Map<String, Object> message = new HashMap<>();
-        message.put("message_type", "ack");
-        message.put("to", to);
-        message.put("message_id", messageId);
-        return JSONValue.toJSONString(message);
+    int getOwnedPartitionCount() {
+        return partitionLeases.getOwnedPartitions().size();
     }
 
+    /**
+     * Get the cache of the answers of the list queries.
+     * @return the response cache.
+     */
+    ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Get the sender of the chunks of the answers of the list queries.
+     * @return the response pager.
+     */
+    ResponsePager getResponsePager() {
+        return responsePager;
+    }
+
+    /**
+     * Get the number of upstream messages waiting to be handled.
+     * @return the depth of the upstream queues.
+     */
+    public int getUpstreamQueueDepth() {
+        return upstreamExecutor.getQueueDepth();
+    }
 
     /**
-     * Creates a JSON encoded GCM message.
+     * Handles a control message.
      *
-     * @param to RegistrationId of the target device (Required).
-     * @param messageId Unique messageId for which CCS will send an
-     *         "ack/nack" (Required).
-     * @param payload Message content intended for the application. (Optional).
-     * @param collapseKey GCM collapse_key parameter (Optional).
-     * @param timeToLive GCM time_to_live parameter (Optional).
-     * @param delayWhileIdle GCM delay_while_idle parameter (Optional).
-     * @return JSON encoded GCM message.
+     * The only control message sent by CCS is CONNECTION_DRAINING, which means
+     * that the connection will be closed soon and should not get new messages.
      */
-    private static String createJsonMessage(String to, String messageId,
-                                           Map<String, Object> payload, String collapseKey, Long timeToLive,
-                                           Boolean delayWhileIdle) {
-        Map<String, Object> message = new HashMap<>();
-        message.put("to", to);
-        if (collapseKey != null) {
-            message.put("collapse_key", collapseKey);
-        }
-        if (timeToLive != null) {
-            message.put("time_to_live", timeToLive);
-        }
-        if (delayWhileIdle != null && delayWhileIdle) {
-            message.put("delay_while_idle", true);
+    private void handleControlMessage(Message msg, CcsConnection connection) {
+        String controlType = msg.getControlType();
+        if ("CONNECTION_DRAINING".equals(controlType)) {
+            connectionPool.onDraining(connection);
+        } else {
+            Log.e(TAG, "The control_type received (" + controlType + ") is unknown");
         }
-        message.put("message_id", messageId);
-        message.put("data", payload);
-        return JSONValue.toJSONString(message);
     }
 
     /**
-     * Handles an upstream data message from a device application.
+     * Handles an ACK.
+     *
+     * Frees the slot of the message in the in-flight window of the connection.
      */
-    private void handleIncomingDataMessage(Message message) {
-        if (message.getPayload().get("action") != null) {
-            Map<String, Object> payload;
-            switch(message.getPayload().remove("action")){
-                case "createEvent" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    //_id generated automatically
-                    Map<String, Object> map = dataBaseCommunicator.createEvent(payload);
-                    if(map == null){
-                        break;
-                    }
-                    map.put("action", "receivedEventId");
-                    sendDownstreamMessage(createJsonMessage(
-                                    message.getFrom(), getRandomMessageId(), map, null, null, true)
-                    );
-                    break;
-                case "createUser" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    payload.put("device", message.getFrom());
-                    dataBaseCommunicator.createUser(payload);
-                    break;
-                case "updatePosition" :
-                    //Receive userId, lat, lng, eventId
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    String eventId = (String) payload.remove("eventId");
-                    dataBaseCommunicator.updatePosition(new HashMap<>(payload));
-                    List<String> devices = dataBaseCommunicator.getOwnerDevices(eventId);
-                    Map<String, Object> newPayload = dataBaseCommunicator.getUser((String) payload.get("userId"));
-                    newPayload.put("action", "receivedUserPosition");
-                    newPayload.remove("device");
-                    newPayload.put("lat", payload.get("lat"));
-                    newPayload.put("lng", payload.get("lng"));
-                    for(String device : devices){
-                        sendDownstreamMessage(createJsonMessage(
-                                device, getRandomMessageId(), newPayload, null, null, true
-                        ));
-                    }
-                    break;
-                case "addUserToEvent" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    String userId = (String) payload.get("userId");
-                    payload.put("_id", userId);
-                    dataBaseCommunicator.addUserToEvent(payload);
-                    break;
-                case "removeUserToEvent" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    String userId2 = (String) payload.get("userId");
-                    payload.put("_id", userId2);
-                    dataBaseCommunicator.removeUserToEvent(payload);
-                    break;
-                case "updateEvent" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    dataBaseCommunicator.updateEvent(payload);
-                    break;
-                case "updateUser" :
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    payload.put("device", message.getFrom());
-                    dataBaseCommunicator.updateUser(payload);
-                    break;
-                case "getAllEventsOwned" :
-                    //action = "receivedEventsOwned"
-                    //receive : userId
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    Map<String, Object> eventsOwned = dataBaseCommunicator.getAllEventsOwned((String) payload.get("userId"));
-                    eventsOwned.put("action", "receivedEventsOwned");
-                    sendDownstreamMessage(createJsonMessage(
-                                    message.getFrom(), getRandomMessageId(), eventsOwned, null, null, true)
-                    );
-                    break;
-                case "getAllEventsGuested" :
-                    //action = "receivedEventsGuested"
-                    payload = new HashMap<>();
-                    payload.putAll(message.getPayload());
-                    Map<String, Object> eventsGuested = dataBaseCommunicator.getAllEventsGuested((String) payload.get("userId"));
-                    eventsGuested.put("action", "receivedEventsGuested");
-                    sendDownstreamMessage(createJsonMessage(
-                                    message.getFrom(), getRandomMessageId(), eventsGuested, null, null, true)
-                    );
-                    break;
-                case "getAllUsers" :
-                    Map<String, Object> users = dataBaseCommunicator.getUsers();
-                    users.put("action", "receivedUsers");
-                    sendDownstreamMessage(createJsonMessage(
-                            message.getFrom(), getRandomMessageId(), users, null, null, true
-                    ));
-                    //action = "receivedUsers"
-                    break;
-                default :
-                    System.err.println("Unknown action");
-                    break;
-            }
-        }
-        else{
-            System.err.println("No action in this message with a payload. Can't proceed.");
+    private void handleAckReceipt(Message msg, CcsConnection connection) {
+        String messageId = msg.getMessageId();
+        String from = msg.getFrom();
+        connectionPool.onReceipt(connection, messageId);
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, "Ack received from " + from + " for the message " + messageId);
         }
     }
 
+    /**
+     * Handles a NACK.
+     *
+     * Frees the slot of the message in the in-flight window of the connection,
+     * then sends it again later if its error is worth a retry.
+     */
+    private void handleNackReceipt(Message msg, CcsConnection connection) {
+        String messageId = msg.getMessageId();
+        String from = msg.getFrom();
+        String error = msg.getError();
+        DownstreamMessage message = connectionPool.onReceipt(connection, messageId);
+        Log.w(TAG, "Nack received from " + from + " for the message " + messageId
+                + " : " + error + " (" + msg.getErrorDescription() + ")");
+        if (message != null && error != null) {
+            connectionPool.retry(message, error);
+        }
+    }
 }
-
@@ -0,0 +1,268 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.PacketInterceptor;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.OrFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single XMPP connection to the GCM Cloud Connection Server.
+ *
+ * It keeps track of the downstream messages sent through it and not yet
+ * acknowledged in its in-flight window, whose size is used as its load,
+ * and of its draining state.
+ */
+class CcsConnection {
+
+    private static final String TAG = "CcsConnection";
+
+    private final String name;
+    private final ConnectionConfiguration config;
+    private final XMPPConnection connection;
+    private final AckBatcher ackBatcher;
+    private final InFlightWindow inFlightWindow = new InFlightWindow(ServerConfig.IN_FLIGHT_WINDOW,
+            TimeUnit.MILLISECONDS.toNanos(ServerConfig.ACK_TIMEOUT_MILLIS));
+
+    /**
+     * Indicates whether the connection is in draining state, which means that it
+     * will not accept any new downstream messages.
+     */
+    private volatile boolean draining;
+    private volatile long drainingSinceNanos;
+
+    /**
+     * Creates a new connection, not connected yet.
+     * @param name the name of the connection, used in the logs.
+     * @param debuggable true to launch a window with information about packets sent and received.
+     * @param ackFlusher the executor writing the batches of ACKs.
+     */
+    CcsConnection(String name, boolean debuggable, ScheduledExecutorService ackFlusher) {
+        config = new ConnectionConfiguration(ServerConfig.CCS_HOST, ServerConfig.CCS_PORT);
+        config.setReconnectionAllowed(true);
+        config.setRosterLoadedAtLogin(false);
+        config.setSendPresence(false);
+        if (ServerConfig.CCS_TLS) {
+            config.setSecurityMode(SecurityMode.enabled);
+            config.setSocketFactory(SSLSocketFactory.getDefault());
+        } else {
+            // Local simulator only, CCS requires TLS
+            config.setSecurityMode(SecurityMode.disabled);
+        }
+
+        // NOTE: Set to true to launch a window with information about packets sent and received
+        config.setDebuggerEnabled(debuggable);
+
+        this.name = name;
+        this.connection = new XMPPConnection(config);
+        this.ackBatcher = new AckBatcher(new AckBatcher.PacketWriter() {
+            @Override
+            public void write(Packet packet) {
+                connection.sendPacket(packet);
+            }
+        }, ackFlusher);
+    }
+
+    /**
+     * Connects to GCM Cloud Connection Server using the supplied credentials.
+     * @param projectId the project id.
+     * @param apiKey the api key of the project.
+     * @param packetListener the listener called for every incoming message.
+     * @throws XMPPException if the connection or the login failed.
+     */
+    void connect(long projectId, String apiKey, PacketListener packetListener) throws XMPPException {
+        connection.connect();
+
+        connection.addConnectionListener(new ConnectionListener() {
+
+            @Override
+            public void reconnectionSuccessful() {
+                Log.i(TAG, name + " : the reconnection is successful.");
+            }
+
+            @Override
+            public void reconnectionFailed(Exception e) {
+                Log.w(TAG, name + " : the reconnection failed", e);
+            }
+
+            @Override
+            public void reconnectingIn(int seconds) {
+                Log.i(TAG, name + " : the reconnection will try again in " + seconds + " seconds.");
+            }
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                Log.w(TAG, name + " : the connection closed with an exception", e);
+            }
+
+            @Override
+            public void connectionClosed() {
+                Log.i(TAG, name + " : the connection has been closed.");
+            }
+        });
+
+        // Handle incoming packets
+        connection.addPacketListener(packetListener,
+                new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class));
+
+        // Log all outgoing packets, only when asked : serializing every packet is costly
+        if (Log.isPacketDumpEnabled()) {
+            connection.addPacketInterceptor(new PacketInterceptor() {
+                @Override
+                public void interceptPacket(Packet packet) {
+                    Log.i(TAG, name + " : trying to send the following packet :\n" + packet.toXML());
+                }
+            }, new OrFilter(new PacketTypeFilter(org.jivesoftware.smack.packet.Message.class),
+                    new PacketTypeFilter(StanzaPacket.class)));
+        }
+
+        connection.login(projectId + "@gcm.googleapis.com", apiKey);
+    }
+
+    /**
+     * Sends a downstream message if the in-flight window is not full.
+     * The message stays in the window until its ack or nack is received.
+     * @param message the message to send.
+     * @return true if the message has been sent, false if the window is full.
+     */
+    boolean send(DownstreamMessage message) {
+        if (!inFlightWindow.tryAcquire(message)) {
+            return false;
+        }
+        try {
+            connection.sendPacket(new StanzaPacket(message.getStanza()));
+        } catch (RuntimeException e) {
+            inFlightWindow.release(message.getMessageId());
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Sends an ACK for an upstream message received on this connection.
+     * The ACK is written with the next batch, without waiting for it.
+     * @param to the device which sent the upstream message.
+     * @param messageId the id of the upstream message.
+     */
+    void sendAck(String to, String messageId) {
+        ackBatcher.add(StanzaWriter.ack(to, messageId));
+    }
+
+    /**
+     * Writes the ACKs waiting for their batch right away.
+     */
+    void flushAcks() {
+        ackBatcher.flush();
+    }
+
+    /**
+     * Get the number of ACKs waiting for their batch.
+     * @return the number of pending ACKs.
+     */
+    int getPendingAcks() {
+        return ackBatcher.getPendingCount();
+    }
+
+    /**
+     * Called when an ack or a nack has been received for a downstream message.
+     * @param messageId the id of the acknowledged message.
+     * @return the message with its sending time, null if it was not in flight on this connection.
+     */
+    InFlightWindow.InFlight onReceipt(String messageId) {
+        return inFlightWindow.release(messageId);
+    }
+
+    /**
+     * Frees the slots of the messages waiting for their receipt for too long.
+     * @return the expired messages.
+     */
+    List<DownstreamMessage> expireInFlight() {
+        return inFlightWindow.expire();
+    }
+
+    /**
+     * Frees the slots of all the messages in flight, whose receipt will never
+     * come because the connection is closed.
+     * @return the messages in flight.
+     */
+    List<DownstreamMessage> abandonInFlight() {
+        return inFlightWindow.releaseAll();
+    }
+
+    /**
+     * Get the number of downstream messages sent and not yet acknowledged.
+     * @return the load of the connection.
+     */
+    int getLoad() {
+        return inFlightWindow.size();
+    }
+
+    /**
+     * Indicates whether a new message can be sent without exceeding the in-flight window.
+     * @return true if the in-flight window is not full.
+     */
+    boolean hasRoom() {
+        return inFlightWindow.hasRoom();
+    }
+
+    /**
+     * Indicates whether the connection can be used to send downstream messages.
+     * @return true if the connection is authenticated and not draining.
+     */
+    boolean isAvailable() {
+        return !draining && connection.isAuthenticated();
+    }
+
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Stops sending downstream messages through this connection. CCS closes
+     * a draining connection once it is done with it, so it is not reconnected.
+     */
+    void startDraining() {
+        drainingSinceNanos = System.nanoTime();
+        draining = true;
+        config.setReconnectionAllowed(false);
+    }
+
+    /**
+     * Get the time elapsed since the connection started draining.
+     * @return the draining time in nanoseconds, 0 if the connection is not draining.
+     */
+    long getDrainingNanos() {
+        return draining ? System.nanoTime() - drainingSinceNanos : 0;
+    }
+
+    /**
+     * Indicates whether the connection is closed, by us or by CCS.
+     * @return true if the connection is not connected.
+     */
+    boolean isClosed() {
+        return !connection.isConnected();
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void disconnect() {
+        connection.disconnect();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,353 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.XMPPException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of concurrent connections to the GCM Cloud Connection Server.
+ *
+ * Downstream messages are sent through the least loaded available connection
+ * whose in-flight window is not full, and wait when every window is full.
+ * When a connection announces that it is draining, it stops receiving new
+ * messages right away and a fresh connection is opened in the background to
+ * replace it. The draining connection is left open for CCS to close, so the
+ * acks and the upstream messages still coming on it are not lost, and it is
+ * not reconnected : it leaves the pool once closed, its messages still in
+ * flight being retried, or once drained for an ack timeout if CCS never
+ * closes it. The messages whose ack never came are checked a few
+ * times per ack timeout, so a lost ack frees its slot and is retried even
+ * when the windows have room.
+ */
+class CcsConnectionPool implements DownstreamSender.Channel {
+
+    private static final String TAG = "CcsConnectionPool";
+
+    /**
+     * Opens and logs in a new connection.
+     */
+    interface ConnectionFactory {
+        CcsConnection open() throws XMPPException;
+    }
+
+    private static final long AVAILABILITY_CHECK_MILLIS = 1000;
+
+    private final int size;
+    private final ConnectionFactory factory;
+    private final List<CcsConnection> connections = new CopyOnWriteArrayList<>();
+
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private volatile RetryScheduler<DownstreamMessage> retryScheduler;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition connectionAvailable = lock.newCondition();
+
+    private final ExecutorService opener = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ccs-connection-opener");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ccs-in-flight-expirer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new pool, without any connection yet.
+     * @param size the number of connections to keep open.
+     * @param factory the factory used to open the connections.
+     */
+    CcsConnectionPool(int size, ConnectionFactory factory) {
+        this.size = size;
+        this.factory = factory;
+    }
+
+    /**
+     * Opens all the connections of the pool.
+     * @throws XMPPException if a connection could not be opened.
+     */
+    void open() throws XMPPException {
+        for (int i = 0; i < size; i++) {
+            add(factory.open());
+        }
+        long periodMillis = Math.max(1, ServerConfig.ACK_TIMEOUT_MILLIS / 4);
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    expireInFlight();
+                    // Expired messages free their slot
+                    connectionAvailable.signalAll();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "An error occurred while expiring the messages in flight", e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the scheduler which retries the messages whose ack never came or
+     * which could not be written.
+     * Without it, these messages are dropped.
+     * @param retryScheduler the retry scheduler.
+     */
+    void setRetryScheduler(RetryScheduler<DownstreamMessage> retryScheduler) {
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Sends a message again later, if its error is worth a retry.
+     * @param message the message which failed.
+     * @param error the GCM error code.
+     */
+    void retry(DownstreamMessage message, String error) {
+        RetryScheduler<DownstreamMessage> retryScheduler = this.retryScheduler;
+        if (retryScheduler != null) {
+            retryScheduler.retry(message, error);
+        }
+    }
+
+    private void add(CcsConnection connection) {
+        lock.lock();
+        try {
+            connections.add(connection);
+            connectionAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a downstream message through the least loaded available connection
+     * with room in its in-flight window, waiting for one if there is none.
+     * If the connection fails to write it, the message is retried later, as
+     * if CCS had answered SERVICE_UNAVAILABLE.
+     */
+    @Override
+    public void send(DownstreamMessage message) throws InterruptedException {
+        for (;;) {
+            CcsConnection connection = leastLoaded();
+            try {
+                // The window may have been filled by a concurrent sender, then try another one
+                if (connection != null && connection.send(message)) {
+                    return;
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, connection + " : the message " + message.getMessageId() + " could not be sent", e);
+                retry(message, "SERVICE_UNAVAILABLE");
+                return;
+            }
+            if (connection == null) {
+                awaitAvailableConnection();
+            }
+        }
+    }
+
+    private void awaitAvailableConnection() throws InterruptedException {
+        lock.lock();
+        try {
+            expireInFlight();
+            if (leastLoaded() == null) {
+                // Reconnections are not signaled, so check again from time to time
+                connectionAvailable.await(AVAILABILITY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CcsConnection leastLoaded() {
+        CcsConnection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (CcsConnection connection : connections) {
+            if (!connection.isAvailable() || !connection.hasRoom()) {
+                continue;
+            }
+            int load = connection.getLoad();
+            if (load < bestLoad) {
+                best = connection;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private void expireInFlight() {
+        for (CcsConnection connection : connections) {
+            for (DownstreamMessage message : connection.expireInFlight()) {
+                Log.w(TAG, connection + " : no ack received for the message " + message.getMessageId() + ".");
+                retry(message, RetryScheduler.ACK_TIMEOUT);
+            }
+            retireIfDone(connection);
+        }
+    }
+
+    /**
+     * Called when CCS sends a CONNECTION_DRAINING control message on a connection.
+     * The connection does not get any new message and a replacement is opened.
+     * @param connection the connection which is draining.
+     */
+    void onDraining(CcsConnection connection) {
+        if (connection.isDraining()) {
+            return;
+        }
+        connection.startDraining();
+        Log.i(TAG, connection + " is draining, opening a new connection.");
+        retireIfDone(connection);
+        opener.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    add(factory.open());
+                } catch (XMPPException e) {
+                    Log.e(TAG, "The replacement of a draining connection failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when an ack or a nack has been received on a connection.
+     * Frees the slot of the message in the in-flight window and records the ack latency.
+     * @param connection the connection on which the receipt has been received.
+     * @param messageId the id of the acknowledged message.
+     * @return the acknowledged message, null if it was not in flight.
+     */
+    DownstreamMessage onReceipt(CcsConnection connection, String messageId) {
+        InFlightWindow.InFlight inFlight = connection.onReceipt(messageId);
+        if (inFlight == null) {
+            return null;
+        }
+        ackLatency.recordSince(inFlight.getSentNanos());
+        if (!retireIfDone(connection)) {
+            lock.lock();
+            try {
+                connectionAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return inFlight.getMessage();
+    }
+
+    /**
+     * Get the round trip time between the sending of a message and the reception of its ack/nack.
+     * @return the ack latency histogram.
+     */
+    LatencyHistogram getAckLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * Get the number of messages in flight on each connection.
+     * @return the in-flight count by connection name.
+     */
+    Map<String, Integer> getInFlightCounts() {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (CcsConnection connection : connections) {
+            counts.put(connection.toString(), connection.getLoad());
+        }
+        return counts;
+    }
+
+    private boolean retireIfDone(CcsConnection connection) {
+        if (!connection.isDraining()) {
+            return false;
+        }
+        if (!connection.isClosed()) {
+            if (connection.getLoad() > 0
+                    || connection.getDrainingNanos() < TimeUnit.MILLISECONDS.toNanos(ServerConfig.ACK_TIMEOUT_MILLIS)) {
+                return false;
+            }
+            // Drained and still not closed by CCS
+            Log.i(TAG, connection + " has been drained, closing it.");
+            connection.flushAcks();
+            connection.disconnect();
+        }
+        if (!connections.remove(connection)) {
+            return false;
+        }
+        Log.i(TAG, connection + " has been closed, removing it from the pool.");
+        for (DownstreamMessage message : connection.abandonInFlight()) {
+            Log.w(TAG, connection + " : closed before the ack of the message " + message.getMessageId() + ".");
+            retry(message, RetryScheduler.ACK_TIMEOUT);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every message sent has been acknowledged or nacked.
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     * @return true if no message is in flight anymore, false if the timeout elapsed before.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitReceipts(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (getLoad() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // Retired connections do not signal, check again from time to time
+                connectionAvailable.awaitNanos(
+                        Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(AVAILABILITY_CHECK_MILLIS)));
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getLoad() {
+        int load = 0;
+        for (CcsConnection connection : connections) {
+            load += connection.getLoad();
+        }
+        return load;
+    }
+
+    /**
+     * Writes the ACKs waiting for their batch on every connection.
+     */
+    void flushAcks() {
+        for (CcsConnection connection : connections) {
+            connection.flushAcks();
+        }
+    }
+
+    /**
+     * Closes all the connections of the pool.
+     */
+    void close() {
+        expirer.shutdownNow();
+        opener.shutdownNow();
+        for (CcsConnection connection : connections) {
+            connection.disconnect();
+        }
+        connections.clear();
+    }
+}
@@ -0,0 +1,503 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.json.simple.JSONValue;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the GCM Cloud Connection Server, to measure the
+ * throughput and the latency of the server offline.
+ *
+ * It speaks just enough XMPP for Smack : a plain text stream, SASL PLAIN
+ * (any credentials are accepted), resource binding and session. Once logged
+ * in, each connection gets upstream messages from the simulated devices at the
+ * configured rate, at most 100 unacknowledged at a time like CCS, and every
+ * downstream message is acknowledged, or nacked with the configured ratio.
+ * Typing "drain" on the standard input sends CONNECTION_DRAINING on the oldest
+ * connection, which is closed a few seconds later.
+ *
+ * Point the server at it with -Dfirecloud.ccs.host=localhost
+ * -Dfirecloud.ccs.port=5235 -Dfirecloud.ccs.tls=false.
+ */
+public class CcsSimulator {
+
+    private static final String TAG = "CcsSimulator";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-session";
+    private static final String DOMAIN = "gcm.googleapis.com";
+
+    // CCS stops sending upstream messages to a connection with 100 unacknowledged ones
+    private static final int MAX_PENDING_UPSTREAM = 100;
+    private static final long TICK_MILLIS = 10;
+    private static final long DRAIN_CLOSE_MILLIS = 5000;
+
+    private final int port;
+    private final int devices;
+    private final double upstreamPerSecond;
+    private final double nackRatio;
+
+    private final List<SimulatedConnection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong upstreamCounter = new AtomicLong();
+    private final AtomicLong upstreamAcked = new AtomicLong();
+    private final AtomicLong downstreamReceived = new AtomicLong();
+    private final AtomicLong downstreamNacked = new AtomicLong();
+    private final LatencyHistogram upstreamAckLatency = new LatencyHistogram();
+    private final Random random = new Random();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ccs-simulator");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ServerSocket serverSocket;
+    private double upstreamCredit;
+
+    /**
+     * A connection from the server, with the upstream messages waiting for their ACK.
+     */
+    private class SimulatedConnection implements Runnable {
+        private final Socket socket;
+        private final String name;
+        private final Writer writer;
+        // Message id -> time of sending, in nanoseconds
+        private final Map<String, Long> pendingUpstream = new ConcurrentHashMap<>();
+        private volatile boolean bound;
+        private volatile boolean draining;
+        private String user = "unknown";
+
+        private SimulatedConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.name = "sim-" + connectionCount.incrementAndGet();
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8));
+        }
+
+        @Override
+        public void run() {
+            try {
+                Reader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+                readStream(reader);
+            } catch (IOException | XmlPullParserException e) {
+                if (!socket.isClosed()) {
+                    Log.w(TAG, name + " : the connection failed", e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void readStream(Reader reader) throws IOException, XmlPullParserException {
+            XmlPullParser parser = newParser(reader);
+            boolean authenticated = false;
+            for (;;) {
+                int event = parser.next();
+                if (event == XmlPullParser.END_DOCUMENT) {
+                    return;
+                }
+                if (event == XmlPullParser.END_TAG && "stream".equals(parser.getName())) {
+                    write("</stream:stream>");
+                    return;
+                }
+                if (event != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                switch (parser.getName()) {
+                    case "stream":
+                        openStream(authenticated);
+                        break;
+                    case "auth":
+                        // \0user\0password
+                        String[] credentials = new String(StringUtils.decodeBase64(parser.nextText()), UTF_8).split("\0");
+                        if (credentials.length > 1) {
+                            user = credentials[1];
+                        }
+                        write("<success xmlns=\"" + SASL_NAMESPACE + "\"/>");
+                        authenticated = true;
+                        // The client opens a new stream on the same socket
+                        parser = newParser(reader);
+                        break;
+                    case "iq":
+                        handleIq(parser);
+                        break;
+                    case "message":
+                        handleMessage(parser);
+                        break;
+                    default:
+                        skip(parser);
+                        break;
+                }
+            }
+        }
+
+        private void openStream(boolean authenticated) throws IOException {
+            StringBuilder stream = new StringBuilder(512);
+            stream.append("<?xml version='1.0'?><stream:stream xmlns='jabber:client'")
+                    .append(" xmlns:stream='http://etherx.jabber.org/streams' id='").append(name)
+                    .append("' from='").append(DOMAIN).append("' version='1.0'><stream:features>");
+            if (authenticated) {
+                stream.append("<bind xmlns=\"").append(BIND_NAMESPACE).append("\"/>")
+                        .append("<session xmlns=\"").append(SESSION_NAMESPACE).append("\"/>");
+            } else {
+                stream.append("<mechanisms xmlns=\"").append(SASL_NAMESPACE).append("\">")
+                        .append("<mechanism>PLAIN</mechanism></mechanisms>");
+            }
+            stream.append("</stream:features>");
+            write(stream.toString());
+        }
+
+        private void handleIq(XmlPullParser parser) throws IOException, XmlPullParserException {
+            String id = parser.getAttributeValue(null, "id");
+            String child = null;
+            int depth = parser.getDepth();
+            while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() > depth) {
+                if (parser.getEventType() == XmlPullParser.START_TAG && child == null) {
+                    child = parser.getNamespace();
+                }
+            }
+            if (BIND_NAMESPACE.equals(child)) {
+                write("<iq type=\"result\" id=\"" + id + "\"><bind xmlns=\"" + BIND_NAMESPACE + "\"><jid>"
+                        + StringUtils.escapeForXML(user) + "/" + name + "</jid></bind></iq>");
+                bound = true;
+                Log.i(TAG, name + " : " + user + " logged in.");
+            } else {
+                // Session, and anything else, are simply accepted
+                write("<iq type=\"result\" id=\"" + id + "\"/>");
+            }
+        }
+
+        private void handleMessage(XmlPullParser parser) throws IOException, XmlPullParserException {
+            int depth = parser.getDepth();
+            while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() > depth) {
+                if (parser.getEventType() == XmlPullParser.START_TAG
+                        && GcmPacketExtension.GCM_ELEMENT_NAME.equals(parser.getName())) {
+                    handleJson(parser.nextText());
+                }
+            }
+        }
+
+        private void handleJson(String json) throws IOException {
+            Object parsed = JSONValue.parse(json);
+            if (!(parsed instanceof Map)) {
+                Log.w(TAG, name + " : invalid JSON received " + json);
+                return;
+            }
+            Map<?, ?> message = (Map<?, ?>) parsed;
+            String messageId = String.valueOf(message.get("message_id"));
+            if ("ack".equals(message.get("message_type"))) {
+                Long sentNanos = pendingUpstream.remove(messageId);
+                if (sentNanos != null) {
+                    upstreamAckLatency.recordSince(sentNanos);
+                    upstreamAcked.incrementAndGet();
+                }
+                return;
+            }
+            downstreamReceived.incrementAndGet();
+            Map<String, Object> receipt = new LinkedHashMap<>();
+            receipt.put("from", message.get("to"));
+            receipt.put("message_id", messageId);
+            if (nackRatio > 0 && nextDouble() < nackRatio) {
+                downstreamNacked.incrementAndGet();
+                receipt.put("message_type", "nack");
+                receipt.put("error", "SERVICE_UNAVAILABLE");
+                receipt.put("error_description", "Simulated nack");
+            } else {
+                receipt.put("message_type", "ack");
+            }
+            writeJson(JSONValue.toJSONString(receipt));
+        }
+
+        /**
+         * Sends an upstream message from a device, if the connection can take it.
+         * @return true if the message has been sent.
+         */
+        private boolean sendUpstream(long number) {
+            if (!bound || draining || pendingUpstream.size() >= MAX_PENDING_UPSTREAM) {
+                return false;
+            }
+            String messageId = "up-" + number;
+            Map<String, Object> data = new LinkedHashMap<>();
+            data.put("action", "updatePosition");
+            data.put("userId", "user-" + number % devices);
+            data.put("eventId", "event-" + number % Math.max(1, devices / 10));
+            data.put("lat", String.valueOf(48.8 + nextDouble() / 10));
+            data.put("lng", String.valueOf(2.3 + nextDouble() / 10));
+            Map<String, Object> message = new LinkedHashMap<>();
+            message.put("category", "fr.upem.geoplan");
+            message.put("data", data);
+            message.put("message_id", messageId);
+            message.put("from", "device-" + number % devices);
+            pendingUpstream.put(messageId, System.nanoTime());
+            try {
+                writeJson(JSONValue.toJSONString(message));
+            } catch (IOException e) {
+                pendingUpstream.remove(messageId);
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private void drain() {
+            draining = true;
+            try {
+                writeJson("{\"message_type\":\"control\",\"control_type\":\"CONNECTION_DRAINING\"}");
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            Log.i(TAG, name + " : CONNECTION_DRAINING sent, closing in " + DRAIN_CLOSE_MILLIS + " ms.");
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            }, DRAIN_CLOSE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void writeJson(String json) throws IOException {
+            write("<message id=\"\">" + StanzaWriter.extension(json) + "</message>");
+        }
+
+        private void write(String xml) throws IOException {
+            synchronized (writer) {
+                writer.write(xml);
+                writer.flush();
+            }
+        }
+
+        private void close() {
+            if (connections.remove(this)) {
+                Log.i(TAG, name + " : closed, " + pendingUpstream.size() + " upstream messages were not acknowledged.");
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Creates a new simulator, not started yet.
+     * @param port the port to listen on.
+     * @param devices the number of simulated devices.
+     * @param upstreamPerSecond the number of upstream messages sent every second, over all the connections.
+     * @param nackRatio the part of the downstream messages which are nacked, between 0 and 1.
+     */
+    public CcsSimulator(int port, int devices, double upstreamPerSecond, double nackRatio) {
+        this.port = port;
+        this.devices = devices;
+        this.upstreamPerSecond = upstreamPerSecond;
+        this.nackRatio = nackRatio;
+    }
+
+    /**
+     * Starts accepting connections and sending upstream messages.
+     * @throws IOException if the port can not be bound.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "ccs-simulator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        Log.i(TAG, "Listening on port " + serverSocket.getLocalPort() + ", " + devices + " devices sending "
+                + upstreamPerSecond + " messages/s.");
+    }
+
+    /**
+     * Stops the simulator and closes all the connections.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        for (SimulatedConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends CONNECTION_DRAINING on the oldest connection.
+     */
+    public void drainOldest() {
+        for (SimulatedConnection connection : connections) {
+            if (!connection.draining) {
+                connection.drain();
+                return;
+            }
+        }
+        Log.w(TAG, "No connection to drain.");
+    }
+
+    /**
+     * Get a summary of the traffic since the start.
+     * @return the counters and the latency of the upstream ACKs.
+     */
+    public String getStats() {
+        return "connections=" + connections.size()
+                + " upstream=" + upstreamCounter.get()
+                + " upstreamAcked=" + upstreamAcked.get()
+                + " downstream=" + downstreamReceived.get()
+                + " nacked=" + downstreamNacked.get()
+                + " upstreamAckLatency[" + upstreamAckLatency + "]";
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                SimulatedConnection connection = new SimulatedConnection(socket);
+                connections.add(connection);
+                Thread reader = new Thread(connection, connection.name);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (SocketException e) {
+                // Closed by stop()
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "A connection could not be accepted", e);
+            }
+        }
+    }
+
+    /**
+     * Sends the upstream messages due since the previous tick, spread over the connections.
+     */
+    private void tick() {
+        upstreamCredit += upstreamPerSecond * TICK_MILLIS / 1000;
+        if (connections.isEmpty()) {
+            upstreamCredit = 0;
+            return;
+        }
+        int misses = 0;
+        int index = 0;
+        while (upstreamCredit >= 1 && misses < connections.size()) {
+            SimulatedConnection connection = connections.get(index++ % connections.size());
+            if (connection.sendUpstream(upstreamCounter.get())) {
+                upstreamCounter.incrementAndGet();
+                upstreamCredit--;
+                misses = 0;
+            } else {
+                misses++;
+            }
+        }
+        // Every connection is full : do not accumulate more than a second of late messages
+        upstreamCredit = Math.min(upstreamCredit, Math.max(1, upstreamPerSecond));
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    private static XmlPullParser newParser(Reader reader) throws XmlPullParserException {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(reader);
+        return parser;
+    }
+
+    private static void skip(XmlPullParser parser) throws IOException, XmlPullParserException {
+        int depth = parser.getDepth();
+        while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() > depth) {
+            if (parser.getEventType() == XmlPullParser.END_DOCUMENT) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the simulator until "quit" is typed.
+     * @param args port (5235), devices (1000), upstream messages per second (1000), nack ratio (0).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5235;
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 1000;
+        double nackRatio = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        final CcsSimulator simulator = new CcsSimulator(port, devices, rate, nackRatio);
+        simulator.start();
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ccs-simulator-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }).scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, simulator.getStats());
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in, UTF_8));
+        String command;
+        while ((command = console.readLine()) != null) {
+            switch (command.trim()) {
+                case "drain":
+                    simulator.drainOldest();
+                    break;
+                case "stats":
+                    Log.i(TAG, simulator.getStats());
+                    break;
+                case "quit":
+                    simulator.stop();
+                    Log.flush(1, TimeUnit.SECONDS);
+                    return;
+                default:
+                    Log.i(TAG, "Commands : drain, stats, quit");
+                    break;
+            }
+        }
+    }
+}
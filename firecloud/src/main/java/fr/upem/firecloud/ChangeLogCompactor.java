@@ -0,0 +1,110 @@
+package fr.upem.firecloud;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically sequences and compacts the change log of the events.
+ *
+ * The changes logged by the writes get their version here, in a single
+ * place, so the writes of all the nodes do not wait on a shared counter and
+ * a sync never skips a change written late. The changes older than the
+ * retention are removed, and the devices which synchronized before them get
+ * everything again. In a cluster, only the owner of the partition 0
+ * sequences and compacts, so the nodes do not give the same versions nor
+ * remove the same changes.
+ */
+class ChangeLogCompactor {
+
+    private static final String TAG = "ChangeLogCompactor";
+
+    private static final int SEQUENCE_BATCH = 1000;
+
+    private final DataBaseCommunicator dataBaseCommunicator;
+    private final PartitionLeases partitionLeases;
+    private final long retentionMillis;
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "change-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new ChangeLogCompactor, not started yet.
+     * @param dataBaseCommunicator the database holding the change log.
+     * @param partitionLeases the partitions of this node.
+     * @param retentionMillis the age after which the changes are removed.
+     */
+    ChangeLogCompactor(DataBaseCommunicator dataBaseCommunicator, PartitionLeases partitionLeases,
+                       long retentionMillis) {
+        this.dataBaseCommunicator = dataBaseCommunicator;
+        this.partitionLeases = partitionLeases;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Starts sequencing and compacting.
+     * @param periodMillis the time between two compactions.
+     * @param sequencingMillis the time between two sequencings.
+     */
+    void start(long periodMillis, long sequencingMillis) {
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sequence();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "An error occurred while sequencing the change log", e);
+                }
+            }
+        }, sequencingMillis, sequencingMillis, TimeUnit.MILLISECONDS);
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "An error occurred while compacting the change log", e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sequencing and compacting, waiting for a compaction in progress.
+     */
+    void stop() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.SECONDS)) {
+                Log.w(TAG, "The last compaction is still running.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sequence() {
+        if (!partitionLeases.owns(0)) {
+            return;
+        }
+        while (dataBaseCommunicator.sequenceChanges(SEQUENCE_BATCH) == SEQUENCE_BATCH) {
+            // More changes are waiting
+        }
+    }
+
+    private void compact() {
+        if (!partitionLeases.owns(0)) {
+            return;
+        }
+        long removed = dataBaseCommunicator.compactChanges(System.currentTimeMillis() - retentionMillis);
+        if (removed > 0) {
+            Log.i(TAG, removed + " changes removed from the change log.");
+        }
+    }
+}
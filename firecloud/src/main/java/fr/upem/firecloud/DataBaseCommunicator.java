@@ -5,37 +5,77 @@ import com.mongodb.MongoClient;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
 
 import org.bson.Document;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * This class is used to communicate with the local Mongo database.
  */
 public class DataBaseCommunicator {
 
+    private final MongoClient mongoClient;
     private final MongoCollection<Document> users;
     private final MongoCollection<Document> events;
+    private final MongoCollection<Document> leases;
+    private final MongoCollection<Document> handoffs;
+    private final MongoCollection<Document> changes;
+    private final MongoCollection<Document> counters;
 
     /**
      * Creates a new instance of the DataBaseCommunicator.
      * This class will create a new Data Base named "GeoPlan" if none exists.
-     * It will also create two collections : one named "users" and the other "events"
+     * It will also create two collections : one named "users" and the other "events",
+     * the "leases" and "handoffs" collections shared by the nodes of a cluster,
+     * and the "changes" log of the events with its published version in "counters".
+     * The users, the events and their log are dropped first only if asked with
+     * -Dfirecloud.db.dropOnStart=true, never in cluster mode.
      */
     public DataBaseCommunicator(){
-        MongoClient mongoClient = new MongoClient();
+        if (ServerConfig.DB_DROP_ON_START && ServerConfig.CLUSTER_ENABLED) {
+            // The other nodes are serving these collections
+            throw new IllegalStateException("firecloud.db.dropOnStart can not be used with firecloud.cluster");
+        }
+        mongoClient = new MongoClient();
         MongoDatabase database = mongoClient.getDatabase("GeoPlan");
         users = database.getCollection("users");
         events = database.getCollection("events");
-//        TODO Delete this when the app is clean
-        users.drop();
-        events.drop();
+        leases = database.getCollection("leases");
+        handoffs = database.getCollection("handoffs");
+        handoffs.createIndex(new Document("partition", 1));
+        changes = database.getCollection("changes");
+        counters = database.getCollection("counters");
+        if (ServerConfig.DB_DROP_ON_START) {
+            users.drop();
+            events.drop();
+            changes.drop();
+            counters.drop();
+        }
+        changes.createIndex(new Document("version", 1));
+        changes.createIndex(new Document("members", 1).append("version", 1));
+    }
+
+    /**
+     * Closes the connections to the database.
+     * The DataBaseCommunicator must not be used afterwards.
+     */
+    public void close() {
+        mongoClient.close();
     }
 
     /**
@@ -53,18 +93,21 @@ public class DataBaseCommunicator {
 
     /**
      * Inserts the Json in the database to create a new Event.
-     * The _id is created automatically.
+     * The _id is created automatically and put in the Json map, which has no _id
+     * anymore if the event could not be created.
      * @param eventJSON the Json to add in the database.
-     * @return a new Json map containing the _id field of the event.
+     * @return the _id of the users of the new event, or null if they could not be read.
      */
-    public Map<String, Object> createEvent(Map<String, Object> eventJSON) {
+    public Set<String> createEvent(Map<String, Object> eventJSON) {
         try {
             Document document = new Document(eventJSON);
             events.insertOne(document);
-            HashMap<String, Object> map = new HashMap<>();
-            map.put("_id", document.get("_id"));
-            return map;
+            Set<String> members = memberIds(document);
+            logChange(document.get("_id"), "create", members);
+            eventJSON.put("_id", document.get("_id"));
+            return members;
         }catch (MongoWriteException e){
+            eventJSON.remove("_id");
             return null;
 //            Do nothing ? Event already in the base...
         }
@@ -81,6 +124,24 @@ public class DataBaseCommunicator {
         users.updateOne(new Document("_id", id), new Document("$set", userPosition), updateOptions);
     }
 
+    /**
+     * Updates or inserts if there is none the positions of several users with a single bulk write.
+     * @param positions the json corresponding to the position of each user, by user _id.
+     */
+    public void updatePositions(Map<String, Map<String, Object>> positions){
+        if(positions.isEmpty()){
+            return;
+        }
+        UpdateOptions updateOptions = new UpdateOptions();
+        updateOptions.upsert(true);
+        List<UpdateOneModel<Document>> updates = new ArrayList<>(positions.size());
+        for(Map.Entry<String, Map<String, Object>> position : positions.entrySet()){
+            updates.add(new UpdateOneModel<Document>(new Document("_id", position.getKey()),
+                    new Document("$set", new Document(position.getValue())), updateOptions));
+        }
+        users.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+    }
+
     /**
      * Get the device of the owner(s) of the event.
      * The device is a field to identify in gcm to who send the message.
@@ -89,6 +150,9 @@ public class DataBaseCommunicator {
      */
     public List<String> getOwnerDevices(String eventId){
         Document event = events.find(new Document("_id", eventId)).first();
+        if(event == null){
+            return new LinkedList<>();
+        }
         @SuppressWarnings("unchecked")
         ArrayList<Document> ownersId = (ArrayList<Document>)event.get("owners");
         List<String> devices = new LinkedList<>();
@@ -118,31 +182,285 @@ public class DataBaseCommunicator {
     }
 
 
+    /**
+     * Get the Json maps of several users in the database, with a single query.
+     * @param userIds the _id of the users.
+     * @return A Json map representing each user found, by user _id.
+     */
+    public Map<String, Map<String, Object>> getUsersById(Collection<String> userIds){
+        final Map<String, Map<String, Object>> usersById = new HashMap<>();
+        this.users.find(new Document("_id", new Document("$in", new ArrayList<>(userIds)))).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document user) {
+                HashMap<String, Object> userPayload = new HashMap<>();
+                userPayload.put("_id", user.get("_id"));
+                userPayload.put("email", user.get("email"));
+                userPayload.put("firstName", user.get("firstName"));
+                userPayload.put("lastName", user.get("lastName"));
+                userPayload.put("phone", user.get("phone"));
+                usersById.put((String) user.get("_id"), userPayload);
+            }
+        });
+        return usersById;
+    }
+
+
+    /**
+     * Get the _id of the owners and of the guests of an event.
+     * @param eventId the _id of the event.
+     * @return the _id of the users of the event, empty if the event does not exist,
+     *         or null if the users of the event could not be read.
+     */
+    public Set<String> getEventMemberIds(Object eventId){
+        Document event = events.find(new Document("_id", eventId)).first();
+        if(event == null){
+            return new HashSet<>();
+        }
+        return memberIds(event);
+    }
+
+    private static Set<String> memberIds(Document event){
+        Set<String> members = new HashSet<>();
+        for(String field : Arrays.asList("owners", "guested", "guest")){
+            Object users = event.get(field);
+            if(users == null){
+                continue;
+            }
+            if(!(users instanceof List)){
+                return null;
+            }
+            for(Object user : (List<?>) users){
+                if(user instanceof Map){
+                    user = ((Map<?, ?>) user).get("_id");
+                }
+                if(!(user instanceof String)){
+                    return null;
+                }
+                members.add((String) user);
+            }
+        }
+        return members;
+    }
+
     /**
      * Adds a new _id of User in the guest array of an Event.
      * @param userToEvent a Json map with the userId and the eventId
+     * @return the _id of the users of the event after the change, or null if they could not be read.
      */
-    public void addUserToEvent(Map<String, Object> userToEvent) {
+    public Set<String> addUserToEvent(Map<String, Object> userToEvent) {
         String eventId = (String)userToEvent.remove("eventId");
         events.updateOne(new Document("_id", eventId), new Document("$push", new Document("guest", new Document(userToEvent))));
+        Set<String> members = getEventMemberIds(eventId);
+        logChange(eventId, "addUser", members);
+        return members;
     }
 
 
     /**
      * Removes an _id of User in the guest array of an Event.
      * @param userToEvent a Json map with the userId and the eventId
+     * @return the _id of the users of the event before the change, or null if they could not be read.
      */
-    public void removeUserToEvent(Map<String, Object> userToEvent) {
+    public Set<String> removeUserToEvent(Map<String, Object> userToEvent) {
         String eventId = (String)userToEvent.remove("eventId");
+        // The removed user must learn the change too
+        Set<String> members = getEventMemberIds(eventId);
         events.updateOne(new Document("_id", eventId), new Document("$pull", new Document("guest", new Document(userToEvent))));
+        logChange(eventId, "removeUser", members);
+        return members;
     }
 
     /**
      * Updates the Event fields.
      * @param eventJSON a Json map representing the Event
+     * @return the _id of the users of the event before and after the change, or null if they could not be read.
      */
-    public void updateEvent(Map<String, Object> eventJSON) {
-        events.updateOne(new Document("_id", eventJSON.get("_id")), new Document("$push", eventJSON));
+    public Set<String> updateEvent(Map<String, Object> eventJSON) {
+        Object eventId = eventJSON.get("_id");
+        Set<String> members = getEventMemberIds(eventId);
+        events.updateOne(new Document("_id", eventId), new Document("$push", eventJSON));
+        Set<String> after = getEventMemberIds(eventId);
+        if(members != null && after != null){
+            members.addAll(after);
+        }else{
+            members = null;
+        }
+        logChange(eventId, "update", members);
+        return members;
+    }
+
+    /**
+     * Appends a change of an event to the log. Its version is given later by
+     * {@link #sequenceChanges}, so the writes do not wait for each other.
+     * @param eventId the _id of the event.
+     * @param op the kind of change.
+     * @param members the users who must learn the change, null if unknown : everyone then does.
+     */
+    private void logChange(Object eventId, String op, Set<String> members){
+        Document change = new Document("eventId", eventId)
+                .append("op", op)
+                .append("at", System.currentTimeMillis());
+        if(members != null){
+            change.append("members", new ArrayList<>(members));
+        }
+        changes.insertOne(change);
+    }
+
+    /**
+     * Gives the next versions to the changes logged without one, in the order
+     * of their _id, then publishes the last version to the syncs.
+     *
+     * A change only gets a version once it is written, and the version is only
+     * published once every change up to it has it, so a sync never skips a
+     * change written late. Only one node must sequence at a time : the owner
+     * of the partition 0, whose lease keeps the others out.
+     * @param max the maximum number of changes to sequence.
+     * @return the number of changes sequenced.
+     */
+    public int sequenceChanges(int max){
+        final List<Object> ids = new ArrayList<>();
+        changes.find(new Document("version", null)).sort(new Document("_id", 1)).limit(max)
+                .projection(new Document("_id", 1)).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document change) {
+                ids.add(change.get("_id"));
+            }
+        });
+        if(ids.isEmpty()){
+            return 0;
+        }
+        long version = publishedVersion(counters.find(new Document("_id", "changes")).first());
+        List<UpdateOneModel<Document>> updates = new ArrayList<>(ids.size());
+        for(Object id : ids){
+            updates.add(new UpdateOneModel<Document>(new Document("_id", id),
+                    new Document("$set", new Document("version", ++version))));
+        }
+        changes.bulkWrite(updates);
+        counters.updateOne(new Document("_id", "changes"), new Document("$max", new Document("version", version)),
+                new UpdateOptions().upsert(true));
+        return ids.size();
+    }
+
+    private static long publishedVersion(Document counter){
+        return counter == null || counter.getLong("version") == null ? 0 : counter.getLong("version");
+    }
+
+    /**
+     * Get the events of a user changed since a version of the change log.
+     * Only the published versions are read : every change up to them is written.
+     * @param userId the id of the user.
+     * @param sinceVersion the version of the last change known by the user.
+     * @return a Json map with the version to sync from next time, "reset" if the
+     *         changes since this version have been compacted and the user must get
+     *         all the events again, and the list of "changes" : an "upsert" with
+     *         the current event, or a "remove" if the user is not in the event anymore.
+     */
+    public Map<String, Object> getEventChanges(final String userId, long sinceVersion){
+        Map<String, Object> result = new HashMap<>();
+        Document counter = counters.find(new Document("_id", "changes")).first();
+        long version = publishedVersion(counter);
+        long floor = counter == null || counter.getLong("floor") == null ? 0 : counter.getLong("floor");
+        result.put("version", version);
+        final List<Map<String, Object>> changeList = new ArrayList<>();
+        result.put("changes", changeList);
+        if(sinceVersion < floor){
+            result.put("reset", true);
+            return result;
+        }
+
+        final Set<Object> eventIds = new LinkedHashSet<>();
+        Document filter = new Document("version", new Document("$gt", sinceVersion).append("$lte", version))
+                .append("$or", Arrays.asList(new Document("members", userId),
+                        new Document("members", new Document("$exists", false))));
+        changes.find(filter).sort(new Document("version", 1)).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document change) {
+                eventIds.add(change.get("eventId"));
+            }
+        });
+        if(eventIds.isEmpty()){
+            return result;
+        }
+        final Map<Object, Document> current = new LinkedHashMap<>();
+        events.find(new Document("_id", new Document("$in", new ArrayList<>(eventIds)))).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document event) {
+                current.put(event.get("_id"), event);
+            }
+        });
+        for(Object eventId : eventIds){
+            Document event = current.get(eventId);
+            Set<String> members = event == null ? null : memberIds(event);
+            Map<String, Object> change = new HashMap<>();
+            if(members != null && members.contains(userId)){
+                change.put("op", "upsert");
+                change.put("event", event);
+            }else{
+                change.put("op", "remove");
+                change.put("_id", eventId);
+            }
+            changeList.add(change);
+        }
+        return result;
+    }
+
+    /**
+     * Compacts the change log.
+     * The changes older than the given time are removed, and the versions before
+     * them can not be synced from anymore. Among the remaining ones, only the
+     * latest change of each event is kept, for the users of all its changes.
+     * The changes are grouped by event in the database, so only the ids and the
+     * users of the events changed several times are read.
+     * @param olderThan the time before which the changes are removed, in milliseconds since the epoch.
+     * @return the number of changes removed.
+     */
+    public long compactChanges(long olderThan){
+        long removed = 0;
+        Document lastExpired = changes.find(new Document("at", new Document("$lt", olderThan))
+                .append("version", new Document("$ne", null)))
+                .sort(new Document("version", -1)).limit(1).first();
+        if(lastExpired != null){
+            long floor = lastExpired.getLong("version");
+            removed += changes.deleteMany(new Document("version", new Document("$lte", floor))).getDeletedCount();
+            counters.updateOne(new Document("_id", "changes"), new Document("$max", new Document("floor", floor)));
+        }
+
+        // The changes without a version yet are left for the next compaction
+        List<Document> pipeline = Arrays.asList(
+                new Document("$match", new Document("version", new Document("$ne", null))),
+                new Document("$sort", new Document("version", 1)),
+                new Document("$group", new Document("_id", "$eventId")
+                        .append("count", new Document("$sum", 1))
+                        .append("latest", new Document("$last", "$_id"))
+                        .append("changes", new Document("$push",
+                                new Document("_id", "$_id").append("members", "$members")))),
+                new Document("$match", new Document("count", new Document("$gte", 2))));
+        for(Document event : changes.aggregate(pipeline).allowDiskUse(true)){
+            Object latest = event.get("latest");
+            Set<Object> members = new HashSet<>();
+            boolean everyone = false;
+            List<Object> older = new ArrayList<>();
+            @SuppressWarnings("unchecked")
+            List<Document> eventChanges = (List<Document>) event.get("changes");
+            for(Document change : eventChanges){
+                Object changeMembers = change.get("members");
+                if(changeMembers instanceof List){
+                    members.addAll((List<?>) changeMembers);
+                }else{
+                    everyone = true;
+                }
+                if(!latest.equals(change.get("_id"))){
+                    older.add(change.get("_id"));
+                }
+            }
+            // Merge the users into the latest change before removing the older ones
+            Document update = everyone
+                    ? new Document("$unset", new Document("members", ""))
+                    : new Document("$set", new Document("members", new ArrayList<>(members)));
+            changes.updateOne(new Document("_id", latest), update);
+            removed += changes.deleteMany(new Document("_id", new Document("$in", older))).getDeletedCount();
+        }
+        return removed;
     }
 
     /**
@@ -224,4 +542,99 @@ public class DataBaseCommunicator {
         return usersMap;
     }
 
+    /**
+     * Takes or renews the lease of a partition.
+     * The lease is taken if it does not exist, if it expired or if it is already held by the node.
+     * @param partition the partition to lease.
+     * @param owner the id of the node taking the lease.
+     * @param now the current time, in milliseconds since the epoch.
+     * @param expiresAt the end of the lease, in milliseconds since the epoch.
+     * @return true if the node holds the lease, false if another node does.
+     */
+    public boolean acquireLease(int partition, String owner, long now, long expiresAt){
+        UpdateOptions updateOptions = new UpdateOptions();
+        updateOptions.upsert(true);
+        Document filter = new Document("_id", partition).append("$or", Arrays.asList(
+                new Document("expiresAt", new Document("$lt", now)),
+                new Document("owner", owner)));
+        try {
+            UpdateResult result = leases.updateOne(filter,
+                    new Document("$set", new Document("owner", owner).append("expiresAt", expiresAt)), updateOptions);
+            return result.getMatchedCount() > 0 || result.getUpsertedId() != null;
+        }catch (MongoWriteException e){
+//            Duplicate _id : the lease is held by another node
+            return false;
+        }
+    }
+
+    /**
+     * Ends the leases of a node, so other nodes can take them without waiting for their expiry.
+     * @param owner the id of the node releasing the leases.
+     * @param partitions the partitions to release.
+     */
+    public void releaseLeases(String owner, Collection<Integer> partitions){
+        if(partitions.isEmpty()){
+            return;
+        }
+        leases.updateMany(new Document("_id", new Document("$in", new ArrayList<>(partitions))).append("owner", owner),
+                new Document("$set", new Document("expiresAt", 0L)));
+    }
+
+    /**
+     * Get the owner of each partition whose lease has not expired.
+     * @param now the current time, in milliseconds since the epoch.
+     * @return the id of the owner node, by partition.
+     */
+    public Map<Integer, String> getLeaseOwners(long now){
+        final Map<Integer, String> owners = new HashMap<>();
+        leases.find(new Document("expiresAt", new Document("$gt", now))).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document lease) {
+                owners.put(lease.getInteger("_id"), lease.getString("owner"));
+            }
+        });
+        return owners;
+    }
+
+    /**
+     * Inserts work meant for the owners of other partitions.
+     * Each Json map needs a "partition" field.
+     * @param work the Json maps to hand off.
+     */
+    public void handOff(List<Map<String, Object>> work){
+        if(work.isEmpty()){
+            return;
+        }
+        List<Document> documents = new ArrayList<>(work.size());
+        for(Map<String, Object> map : work){
+            documents.add(new Document(map));
+        }
+        handoffs.insertMany(documents);
+    }
+
+    /**
+     * Removes and returns the work handed off to some partitions, oldest first.
+     * @param partitions the partitions owned by the node.
+     * @return the Json maps handed off by the other nodes.
+     */
+    public List<Map<String, Object>> takeHandOffs(Collection<Integer> partitions){
+        final List<Map<String, Object>> work = new ArrayList<>();
+        if(partitions.isEmpty()){
+            return work;
+        }
+        final List<Object> ids = new ArrayList<>();
+        handoffs.find(new Document("partition", new Document("$in", new ArrayList<>(partitions))))
+                .sort(new Document("_id", 1)).forEach(new Block<Document>() {
+            @Override
+            public void apply(Document document) {
+                ids.add(document.remove("_id"));
+                work.add(document);
+            }
+        });
+        if(!ids.isEmpty()){
+            handoffs.deleteMany(new Document("_id", new Document("$in", ids)));
+        }
+        return work;
+    }
+
 }
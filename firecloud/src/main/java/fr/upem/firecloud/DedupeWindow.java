@@ -0,0 +1,98 @@
+package fr.upem.firecloud;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upstream messages seen recently, to recognize the ones CCS delivers again.
+ *
+ * CCS sends an upstream message again when its ACK comes late, so the same
+ * message may be received several times. A message is identified by its sender
+ * and its id, since each device numbers its own messages. The window is bounded
+ * both in time and in size : a message is forgotten once it is older than the
+ * window, or when the window is full and it is the oldest one.
+ */
+class DedupeWindow {
+
+    private final long windowNanos;
+    private final AtomicLong duplicates = new AtomicLong();
+    // Insertion ordered, so the oldest messages come first
+    private final LinkedHashMap<String, Long> seen;
+
+    /**
+     * Creates a new DedupeWindow.
+     * @param capacity the maximum number of messages remembered.
+     * @param windowNanos the time during which a message is remembered.
+     */
+    DedupeWindow(final int capacity, long windowNanos) {
+        this.windowNanos = windowNanos;
+        this.seen = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Remembers a message, unless it has already been seen in the window.
+     * @param from the device which sent the message.
+     * @param messageId the id of the message.
+     * @return true the first time the message is seen, false for a duplicate.
+     */
+    boolean markSeen(String from, String messageId) {
+        String key = from + '\n' + messageId;
+        long now = System.nanoTime();
+        synchronized (seen) {
+            expire(now);
+            if (seen.containsKey(key)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            seen.put(key, now);
+            return true;
+        }
+    }
+
+    /**
+     * Forgets a message, so it is handled when CCS delivers it again.
+     * @param from the device which sent the message.
+     * @param messageId the id of the message.
+     */
+    void forget(String from, String messageId) {
+        String key = from + '\n' + messageId;
+        synchronized (seen) {
+            seen.remove(key);
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Long> iterator = seen.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() < windowNanos) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Get the number of duplicates recognized.
+     * @return the number of duplicates.
+     */
+    long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    /**
+     * Get the number of messages remembered.
+     * @return the size of the window.
+     */
+    int size() {
+        synchronized (seen) {
+            return seen.size();
+        }
+    }
+}
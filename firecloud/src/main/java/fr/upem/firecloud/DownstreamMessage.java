@@ -0,0 +1,84 @@
+package fr.upem.firecloud;
+
+/**
+ * A downstream message waiting to be sent, or waiting for its ack, to a device.
+ */
+class DownstreamMessage implements RetryScheduler.Retryable<DownstreamMessage> {
+
+    private final String to;
+    private final String messageId;
+    private final String stanza;
+    private final Lane lane;
+    private final int attempt;
+
+    /**
+     * Creates a new DownstreamMessage, for its first attempt.
+     * @param to the registration id of the target device.
+     * @param messageId the unique id of the message, used by CCS in the ack/nack.
+     * @param stanza the XML stanza of the GCM message, written by {@link StanzaWriter#message}.
+     * @param lane the outbound lane of the message.
+     */
+    DownstreamMessage(String to, String messageId, String stanza, Lane lane) {
+        this(to, messageId, stanza, lane, 1);
+    }
+
+    private DownstreamMessage(String to, String messageId, String stanza, Lane lane, int attempt) {
+        this.to = to;
+        this.messageId = messageId;
+        this.stanza = stanza;
+        this.lane = lane;
+        this.attempt = attempt;
+    }
+
+    @Override
+    public DownstreamMessage nextAttempt() {
+        return new DownstreamMessage(to, messageId, stanza, lane, attempt + 1);
+    }
+
+    /**
+     * Get the registration id of the target device.
+     * @return the target device
+     */
+    String getTo() {
+        return to;
+    }
+
+    /**
+     * Get the message id
+     * @return the message id
+     */
+    String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Get the XML stanza of the GCM message.
+     * @return the stanza, ready to be written on the connection
+     */
+    String getStanza() {
+        return stanza;
+    }
+
+    /**
+     * Get the outbound lane of the message, kept by its retries.
+     * @return the lane
+     */
+    Lane getLane() {
+        return lane;
+    }
+
+    @Override
+    public int getAttempt() {
+        return attempt;
+    }
+
+    @Override
+    public String describe() {
+        return "message " + messageId + " to " + to;
+    }
+
+    @Override
+    public String toString() {
+        return stanza;
+    }
+}
@@ -0,0 +1,147 @@
+package fr.upem.firecloud;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of downstream messages drained by a dedicated sender thread.
+ *
+ * Producers are blocked when the queue is full, and the sender thread parks
+ * in the channel while no connection accepts new messages instead of spinning.
+ * The messages are queued in the {@link Lane} they were sent with, and the
+ * sender thread serves the lanes by weight.
+ */
+class DownstreamSender {
+
+    private static final String TAG = "DownstreamSender";
+
+    private static final long DRAIN_CHECK_MILLIS = 20;
+
+    /**
+     * Writes a downstream message on the wire, waiting for a connection if needed.
+     */
+    interface Channel {
+        void send(DownstreamMessage message) throws InterruptedException;
+    }
+
+    private final LaneQueue<DownstreamMessage> queue;
+    private final Channel channel;
+    private final Thread senderThread;
+
+    private volatile boolean running;
+
+    /**
+     * Creates a new DownstreamSender.
+     * @param capacity the maximum number of messages waiting to be sent, by lane.
+     * @param channel the channel used to write the messages.
+     */
+    DownstreamSender(int capacity, Channel channel) {
+        this.queue = new LaneQueue<>(capacity);
+        this.channel = channel;
+        this.senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "ccs-downstream-sender");
+    }
+
+    /**
+     * Starts the sender thread.
+     */
+    void start() {
+        running = true;
+        senderThread.start();
+    }
+
+    /**
+     * Stops the sender thread. Messages still in the queue are not sent.
+     */
+    void stop() {
+        running = false;
+        senderThread.interrupt();
+    }
+
+    /**
+     * Adds a message to the queue of its lane, waiting for some room if the queue is full.
+     * @param message the message to send.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void enqueue(DownstreamMessage message) throws InterruptedException {
+        queue.put(message, message.getLane());
+    }
+
+    /**
+     * Adds a message to the queue of its lane, waiting at most the given time if the queue is full.
+     * @param message the message to send.
+     * @param timeout how long to wait before giving up.
+     * @param unit the unit of the timeout.
+     * @return true if the message has been queued, false if the queue stayed full.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean enqueue(DownstreamMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+        return queue.offer(message, message.getLane(), timeout, unit);
+    }
+
+    /**
+     * Waits until all the queued messages have been handed to the channel.
+     * Producers should be stopped first, or the queue may never become empty.
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     * @return true if the queue is empty, false if the timeout elapsed before.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!queue.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DRAIN_CHECK_MILLIS)));
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of messages waiting to be sent.
+     * @return the depth of the queue.
+     */
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of messages of a lane waiting to be sent.
+     * @param lane the lane.
+     * @return the depth of the queue of the lane.
+     */
+    int getQueueDepth(Lane lane) {
+        return queue.size(lane);
+    }
+
+    /**
+     * Get the number of messages dropped before being sent because they were too old.
+     * @return the number of messages aged out.
+     */
+    long getAgedOutCount() {
+        return queue.getAgedOutCount();
+    }
+
+    private void sendLoop() {
+        while (running) {
+            DownstreamMessage message;
+            try {
+                message = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                channel.send(message);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while sending the message " + message.getMessageId() + ", it is dropped.");
+            } catch (RuntimeException e) {
+                Log.e(TAG, "An error occurred while sending the message " + message.getMessageId(), e);
+            }
+        }
+    }
+}
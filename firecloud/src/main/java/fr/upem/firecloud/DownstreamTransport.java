@@ -0,0 +1,60 @@
+package fr.upem.firecloud;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the downstream messages to the devices, over the CCS connections or
+ * over the GCM HTTP endpoint.
+ */
+interface DownstreamTransport {
+
+    /**
+     * Starts sending the queued messages.
+     */
+    void start();
+
+    /**
+     * Queues the same message for several devices.
+     * The caller is blocked while the queue of the lane is full, unless its messages age out.
+     * @param devices the registration ids of the target devices.
+     * @param payload the content of the message intended for the application.
+     * @param lane the outbound lane of the message.
+     * @throws InterruptedException if interrupted while waiting for room in the queue.
+     */
+    void send(List<String> devices, Map<String, Object> payload, Lane lane) throws InterruptedException;
+
+    /**
+     * Waits until all the queued messages have been sent.
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     * @return true if nothing is left to send, false if the timeout elapsed before.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Stops sending. Messages still queued are not sent.
+     */
+    void stop();
+
+    /**
+     * Get the number of messages waiting to be sent.
+     * @return the depth of the queue.
+     */
+    int getQueueDepth();
+
+    /**
+     * Get the number of messages of a lane waiting to be sent.
+     * @param lane the lane.
+     * @return the depth of the queue of the lane.
+     */
+    int getQueueDepth(Lane lane);
+
+    /**
+     * Get the number of messages dropped before being sent because they were too old.
+     * @return the number of messages aged out.
+     */
+    long getAgedOutCount();
+}
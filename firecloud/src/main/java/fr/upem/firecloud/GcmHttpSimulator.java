@@ -0,0 +1,383 @@
+package fr.upem.firecloud;
+
+import org.json.simple.JSONValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the GCM HTTP endpoint, to try the {@link HttpTransport}
+ * offline.
+ *
+ * It accepts POST requests with registration_ids on any path, keeps the
+ * connections alive like GCM, and answers with a result for each device :
+ * a message_id, or the Unavailable error with the configured ratio. The
+ * counters show how many connections the server opened for its requests.
+ * A {@link Responder} can script the answers instead, for the tests.
+ *
+ * Point the server at it with -Dfirecloud.downstream.transport=http
+ * -Dfirecloud.http.url=http://localhost:8080/gcm/send.
+ */
+public class GcmHttpSimulator {
+
+    private static final String TAG = "GcmHttpSimulator";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * Decides the answer to the requests, in place of the random errors.
+     */
+    interface Responder {
+
+        /**
+         * Answers a request.
+         * @param devices the registration ids of the request.
+         * @return the answer, or null for the random errors.
+         */
+        Answer answer(List<String> devices);
+    }
+
+    /**
+     * The answer to a request.
+     */
+    static final class Answer {
+        private final String status;
+        private final List<String> errors;
+        private final int retryAfterSeconds;
+
+        private Answer(String status, List<String> errors, int retryAfterSeconds) {
+            this.status = status;
+            this.errors = errors;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * Answers with a result for each device.
+         * @param errors the error of each device, in the order of the registration ids, null for a message_id.
+         * @param retryAfterSeconds the Retry-After header, 0 for none.
+         * @return the answer.
+         */
+        static Answer results(List<String> errors, int retryAfterSeconds) {
+            return new Answer("200 OK", errors, retryAfterSeconds);
+        }
+
+        /**
+         * Answers 503, the whole request has to be sent again.
+         * @param retryAfterSeconds the Retry-After header, 0 for none.
+         * @return the answer.
+         */
+        static Answer unavailable(int retryAfterSeconds) {
+            return new Answer("503 Service Unavailable", null, retryAfterSeconds);
+        }
+    }
+
+    private final int port;
+    private final double errorRatio;
+
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong targets = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final Random random = new Random();
+
+    private volatile Responder responder;
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates a new simulator, not started yet.
+     * @param port the port to listen on.
+     * @param errorRatio the part of the devices whose result is an error, between 0 and 1.
+     */
+    public GcmHttpSimulator(int port, double errorRatio) {
+        this.port = port;
+        this.errorRatio = errorRatio;
+    }
+
+    /**
+     * Starts accepting connections.
+     * @throws IOException if the port can not be bound.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "gcm-http-simulator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.i(TAG, "Listening on port " + serverSocket.getLocalPort() + ".");
+    }
+
+    /**
+     * Get the port the simulator listens on, chosen by the system if 0 was given.
+     * @return the local port.
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Scripts the answers to the requests.
+     * @param responder the responder, null for the random errors.
+     */
+    void setResponder(Responder responder) {
+        this.responder = responder;
+    }
+
+    /**
+     * Stops accepting connections.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Get a summary of the traffic since the start.
+     * @return the counters of connections, requests and devices.
+     */
+    public String getStats() {
+        return "connections=" + connectionCount.get()
+                + " requests=" + requests.get()
+                + " devices=" + targets.get()
+                + " errors=" + errors.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "gcm-http-" + connectionCount.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (SocketException e) {
+                // Closed by stop()
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "A connection could not be accepted", e);
+            }
+        }
+    }
+
+    /**
+     * Serves the requests of a connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                int contentLength = 0;
+                boolean close = false;
+                String header;
+                while ((header = readLine(in)) != null && !header.isEmpty()) {
+                    String lower = header.toLowerCase(Locale.ROOT);
+                    if (lower.startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(header.substring("content-length:".length()).trim());
+                    } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                        close = true;
+                    }
+                }
+                byte[] body = new byte[contentLength];
+                int read = 0;
+                while (read < contentLength) {
+                    int n = in.read(body, read, contentLength - read);
+                    if (n < 0) {
+                        return;
+                    }
+                    read += n;
+                }
+                if (!requestLine.startsWith("POST ")) {
+                    respond(out, "405 Method Not Allowed", "Only POST is supported");
+                } else {
+                    handle(out, new String(body, UTF_8));
+                }
+                if (close) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!socket.isClosed()) {
+                Log.w(TAG, "A connection failed", e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private void handle(OutputStream out, String body) throws IOException {
+        Object parsed = JSONValue.parse(body);
+        Object ids = parsed instanceof Map ? ((Map<?, ?>) parsed).get("registration_ids") : null;
+        if (!(ids instanceof List)) {
+            respond(out, "400 Bad Request", "registration_ids is missing");
+            return;
+        }
+        requests.incrementAndGet();
+        int devices = ((List<?>) ids).size();
+        targets.addAndGet(devices);
+        Responder responder = this.responder;
+        Answer answer = null;
+        if (responder != null) {
+            List<String> registrationIds = new ArrayList<>(devices);
+            for (Object id : (List<?>) ids) {
+                registrationIds.add(String.valueOf(id));
+            }
+            answer = responder.answer(registrationIds);
+        }
+        String retryAfter = answer != null && answer.retryAfterSeconds > 0
+                ? "Retry-After: " + answer.retryAfterSeconds + "\r\n" : "";
+        if (answer != null && answer.errors == null) {
+            errors.addAndGet(devices);
+            respond(out, answer.status, retryAfter, "");
+            return;
+        }
+        int failures = 0;
+        List<Map<String, Object>> results = new ArrayList<>(devices);
+        for (int i = 0; i < devices; i++) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            String error = null;
+            if (answer != null) {
+                error = i < answer.errors.size() ? answer.errors.get(i) : null;
+            } else if (errorRatio > 0 && nextDouble() < errorRatio) {
+                error = "Unavailable";
+            }
+            if (error != null) {
+                result.put("error", error);
+                failures++;
+            } else {
+                result.put("message_id", "0:" + messageIds.incrementAndGet());
+            }
+            results.add(result);
+        }
+        errors.addAndGet(failures);
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("multicast_id", requests.get());
+        response.put("success", devices - failures);
+        response.put("failure", failures);
+        response.put("canonical_ids", 0);
+        response.put("results", results);
+        respond(out, "200 OK", retryAfter, JSONValue.toJSONString(response));
+    }
+
+    private static void respond(OutputStream out, String status, String body) throws IOException {
+        respond(out, status, "", body);
+    }
+
+    private static void respond(OutputStream out, String status, String extraHeaders, String body)
+            throws IOException {
+        byte[] content = body.getBytes(UTF_8);
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + extraHeaders
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: " + content.length + "\r\n\r\n";
+        out.write(headers.getBytes(UTF_8));
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Reads a line ending with CRLF, without reading ahead of the body.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, length, UTF_8);
+            }
+            if (line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.write(c);
+        }
+        return line.size() == 0 ? null : new String(line.toByteArray(), UTF_8);
+    }
+
+    private double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    /**
+     * Runs the simulator until "quit" is typed.
+     * @param args port (8080), error ratio (0).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        double errorRatio = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+
+        final GcmHttpSimulator simulator = new GcmHttpSimulator(port, errorRatio);
+        simulator.start();
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "gcm-http-simulator-stats");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }).scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, simulator.getStats());
+            }
+        }, 5, 5, TimeUnit.SECONDS);
+
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in, UTF_8));
+        String command;
+        while ((command = console.readLine()) != null) {
+            switch (command.trim()) {
+                case "stats":
+                    Log.i(TAG, simulator.getStats());
+                    break;
+                case "quit":
+                    simulator.stop();
+                    Log.flush(1, TimeUnit.SECONDS);
+                    return;
+                default:
+                    Log.i(TAG, "Commands : stats, quit");
+                    break;
+            }
+        }
+    }
+}
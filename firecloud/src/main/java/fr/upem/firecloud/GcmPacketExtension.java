@@ -0,0 +1,28 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.packet.DefaultPacketExtension;
+
+/**
+ * XMPP Packet Extension for GCM Cloud Connection Server.
+ */
+class GcmPacketExtension extends DefaultPacketExtension {
+
+    static final String GCM_ELEMENT_NAME = "gcm";
+    static final String GCM_NAMESPACE = "google:mobile:data";
+
+    private final String json;
+
+    GcmPacketExtension(String json) {
+        super(GCM_ELEMENT_NAME, GCM_NAMESPACE);
+        this.json = json;
+    }
+
+    String getJson() {
+        return json;
+    }
+
+    @Override
+    public String toXML() {
+        return StanzaWriter.extension(json);
+    }
+}
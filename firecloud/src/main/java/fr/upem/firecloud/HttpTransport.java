@@ -0,0 +1,330 @@
+package fr.upem.firecloud;
+
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the downstream messages with the GCM HTTP endpoint, one request for
+ * up to 1000 devices getting the same message.
+ *
+ * A few sender threads post the queued requests. The connections are kept
+ * alive and reused by HttpURLConnection as long as each response is read
+ * entirely, so the pool holds as many connections as there are senders.
+ * The devices whose result is a temporary error are sent the message again
+ * by a {@link RetryScheduler}, as the stanzas of CCS are, and so is the whole
+ * request if the endpoint is unavailable, not before its Retry-After. The requests wait in the {@link Lane}
+ * of their message, served by weight.
+ */
+class HttpTransport implements DownstreamTransport, RetryScheduler.Target<HttpTransport.Batch> {
+
+    private static final String TAG = "HttpTransport";
+
+    /**
+     * Maximum number of registration ids in a request, set by GCM.
+     */
+    static final int MAX_REGISTRATION_IDS = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long DRAIN_CHECK_MILLIS = 20;
+
+    /**
+     * A request waiting to be posted.
+     */
+    static final class Batch implements RetryScheduler.Retryable<Batch> {
+        private final List<String> devices;
+        private final Map<String, Object> payload;
+        private final Lane lane;
+        private final int attempt;
+
+        private Batch(List<String> devices, Map<String, Object> payload, Lane lane, int attempt) {
+            this.devices = devices;
+            this.payload = payload;
+            this.lane = lane;
+            this.attempt = attempt;
+        }
+
+        private Batch forDevices(List<String> failed) {
+            return new Batch(failed, payload, lane, attempt);
+        }
+
+        @Override
+        public int getAttempt() {
+            return attempt;
+        }
+
+        @Override
+        public Batch nextAttempt() {
+            return new Batch(devices, payload, lane, attempt + 1);
+        }
+
+        @Override
+        public String describe() {
+            return "message to " + devices.size() + " devices";
+        }
+    }
+
+    // Error codes of the HTTP results -> error codes of CCS, used by the retry policies
+    private static final Map<String, String> CCS_ERRORS = new HashMap<>();
+
+    static {
+        CCS_ERRORS.put("Unavailable", "SERVICE_UNAVAILABLE");
+        CCS_ERRORS.put("InternalServerError", "INTERNAL_SERVER_ERROR");
+        CCS_ERRORS.put("DeviceMessageRateExceeded", "DEVICE_MESSAGE_RATE_EXCEEDED");
+        CCS_ERRORS.put("TopicsMessageRateExceeded", "TOPICS_MESSAGE_RATE_EXCEEDED");
+    }
+
+    private final URL endpoint;
+    private final String authorization;
+    private final int timeoutMillis;
+    private final RetryScheduler<Batch> retryScheduler;
+    private final LaneQueue<Batch> queue;
+    private final Thread[] senders;
+    private final AtomicInteger posting = new AtomicInteger();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private volatile boolean running;
+
+    /**
+     * Creates a new HttpTransport, not started yet.
+     * @param url the GCM HTTP endpoint, or a local stub.
+     * @param apiKey the server key of the GCM project.
+     * @param senders the number of requests posted at the same time.
+     * @param capacity the maximum number of requests waiting to be posted, by lane.
+     * @param timeoutMillis the connect and read timeout of a request.
+     */
+    HttpTransport(String url, String apiKey, int senders, int capacity, int timeoutMillis) {
+        this(url, apiKey, senders, capacity, timeoutMillis, RetryScheduler.defaultPolicies());
+    }
+
+    /**
+     * Creates a new HttpTransport, not started yet, with its own retry policies.
+     * @param url the GCM HTTP endpoint, or a local stub.
+     * @param apiKey the server key of the GCM project.
+     * @param senders the number of requests posted at the same time.
+     * @param capacity the maximum number of requests waiting to be posted, by lane.
+     * @param timeoutMillis the connect and read timeout of a request.
+     * @param retryPolicies the retry policy of each CCS error code.
+     */
+    HttpTransport(String url, String apiKey, int senders, int capacity, int timeoutMillis,
+                  Map<String, RetryScheduler.Policy> retryPolicies) {
+        try {
+            this.endpoint = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid GCM HTTP url : " + url, e);
+        }
+        this.authorization = "key=" + apiKey;
+        this.timeoutMillis = timeoutMillis;
+        this.retryScheduler = new RetryScheduler<>(this, retryPolicies);
+        this.queue = new LaneQueue<>(capacity);
+        // HttpURLConnection keeps 5 idle connections by host unless told otherwise
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(senders));
+        }
+        this.senders = new Thread[senders];
+        for (int i = 0; i < senders; i++) {
+            this.senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, "http-sender-" + (i + 1));
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        for (Thread sender : senders) {
+            sender.start();
+        }
+        Log.i(TAG, "Sending the downstream messages to " + endpoint + " with " + senders.length + " connections.");
+    }
+
+    @Override
+    public void send(List<String> devices, Map<String, Object> payload, Lane lane) throws InterruptedException {
+        for (int from = 0; from < devices.size(); from += MAX_REGISTRATION_IDS) {
+            int to = Math.min(devices.size(), from + MAX_REGISTRATION_IDS);
+            queue.put(new Batch(new ArrayList<>(devices.subList(from, to)), payload, lane, 1), lane);
+        }
+    }
+
+    @Override
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!queue.isEmpty() || posting.get() > 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DRAIN_CHECK_MILLIS)));
+        }
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        retryScheduler.stop();
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+    }
+
+    @Override
+    public boolean offer(Batch batch) throws InterruptedException {
+        return queue.offer(batch, batch.lane, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public int getQueueDepth(Lane lane) {
+        return queue.size(lane);
+    }
+
+    @Override
+    public long getAgedOutCount() {
+        return queue.getAgedOutCount();
+    }
+
+    /**
+     * Get the duration of the requests to the endpoint.
+     * @return the request latencies.
+     */
+    LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    private void sendLoop() {
+        while (running) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            posting.incrementAndGet();
+            try {
+                post(batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "An error occurred while sending a message to " + batch.devices.size() + " devices", e);
+            } finally {
+                posting.decrementAndGet();
+            }
+        }
+    }
+
+    private void post(Batch batch) {
+        byte[] body = StanzaWriter.multicast(batch.devices, batch.payload, null, true).getBytes(UTF_8);
+        long start = System.nanoTime();
+        int status;
+        String response;
+        long retryAfterMillis;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Authorization", authorization);
+            connection.setRequestProperty("Content-Type", "application/json");
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            status = connection.getResponseCode();
+            retryAfterMillis = connection.getHeaderFieldInt("Retry-After", 0) * 1000L;
+            // Read the whole response, or the connection is not reused
+            response = readFully(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        } catch (IOException e) {
+            requestLatency.recordSince(start);
+            Log.w(TAG, "The request to " + batch.devices.size() + " devices failed", e);
+            retryScheduler.retry(batch, "SERVICE_UNAVAILABLE");
+            return;
+        }
+        requestLatency.recordSince(start);
+
+        if (status == HttpURLConnection.HTTP_OK) {
+            handleResults(batch, response, retryAfterMillis);
+        } else if (status >= 500) {
+            Log.w(TAG, "The GCM HTTP endpoint answered " + status + " for " + batch.devices.size() + " devices.");
+            retryScheduler.retry(batch, "SERVICE_UNAVAILABLE", retryAfterMillis);
+        } else {
+            // 400 : invalid JSON, 401 : wrong api key, sending it again would not help
+            Log.e(TAG, "The GCM HTTP endpoint rejected the message (" + status + ") : " + response);
+        }
+    }
+
+    /**
+     * Reads the result of each device, in the order of the registration ids.
+     */
+    private void handleResults(Batch batch, String response, long retryAfterMillis) {
+        Object parsed = JSONValue.parse(response);
+        Object results = parsed instanceof Map ? ((Map<?, ?>) parsed).get("results") : null;
+        if (!(results instanceof List) || ((List<?>) results).size() != batch.devices.size()) {
+            Log.e(TAG, "Unexpected response of the GCM HTTP endpoint : " + response);
+            return;
+        }
+        Map<String, List<String>> failedByError = new HashMap<>();
+        List<?> list = (List<?>) results;
+        for (int i = 0; i < list.size(); i++) {
+            Object result = list.get(i);
+            Object error = result instanceof Map ? ((Map<?, ?>) result).get("error") : null;
+            if (error == null) {
+                continue;
+            }
+            String device = batch.devices.get(i);
+            String ccsError = CCS_ERRORS.get(error.toString());
+            if (ccsError == null) {
+                // NotRegistered, InvalidRegistration, MismatchSenderId...
+                Log.w(TAG, "The message to " + device + " failed with " + error + ", it is dropped.");
+                continue;
+            }
+            List<String> failed = failedByError.get(ccsError);
+            if (failed == null) {
+                failed = new ArrayList<>();
+                failedByError.put(ccsError, failed);
+            }
+            failed.add(device);
+        }
+        for (Map.Entry<String, List<String>> entry : failedByError.entrySet()) {
+            retryScheduler.retry(batch.forDevices(entry.getValue()), entry.getKey(), retryAfterMillis);
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return new String(content.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Downstream messages sent on a connection and not yet acknowledged, keyed by message id.
+ *
+ * CCS accepts at most 100 unacknowledged messages per connection, so a message
+ * can only be sent once it got a slot in the window. Messages whose receipt
+ * never comes (for instance because the connection has been reset) expire
+ * after a timeout to free their slot.
+ */
+class InFlightWindow {
+
+    /**
+     * A message in flight, with the time it has been sent.
+     */
+    static class InFlight {
+        private final DownstreamMessage message;
+        private final long sentNanos;
+
+        private InFlight(DownstreamMessage message, long sentNanos) {
+            this.message = message;
+            this.sentNanos = sentNanos;
+        }
+
+        DownstreamMessage getMessage() {
+            return message;
+        }
+
+        long getSentNanos() {
+            return sentNanos;
+        }
+    }
+
+    private final int capacity;
+    private final long timeoutNanos;
+    // Insertion ordered, so the oldest messages come first
+    private final LinkedHashMap<String, InFlight> messages = new LinkedHashMap<>();
+
+    /**
+     * Creates a new InFlightWindow.
+     * @param capacity the maximum number of unacknowledged messages.
+     * @param timeoutNanos the time after which an unacknowledged message frees its slot.
+     */
+    InFlightWindow(int capacity, long timeoutNanos) {
+        this.capacity = capacity;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * Takes a slot for the message if the window is not full.
+     * @param message the message about to be sent.
+     * @return true if the message got a slot, false if the window is full.
+     */
+    synchronized boolean tryAcquire(DownstreamMessage message) {
+        if (messages.size() >= capacity) {
+            return false;
+        }
+        messages.put(message.getMessageId(), new InFlight(message, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Frees the slot of a message, because its ack/nack has been received or it could not be sent.
+     * @param messageId the id of the message.
+     * @return the message with its sending time, null if the message is not in the window.
+     */
+    synchronized InFlight release(String messageId) {
+        return messages.remove(messageId);
+    }
+
+    /**
+     * Frees the slots of the messages waiting for their receipt for too long.
+     * @return the expired messages.
+     */
+    synchronized List<DownstreamMessage> expire() {
+        List<DownstreamMessage> expired = null;
+        long now = System.nanoTime();
+        for (Iterator<InFlight> iterator = messages.values().iterator(); iterator.hasNext(); ) {
+            InFlight inFlight = iterator.next();
+            if (now - inFlight.sentNanos < timeoutNanos) {
+                break;
+            }
+            iterator.remove();
+            if (expired == null) {
+                expired = new ArrayList<>();
+            }
+            expired.add(inFlight.message);
+        }
+        if (expired == null) {
+            return Collections.emptyList();
+        }
+        return expired;
+    }
+
+    /**
+     * Frees the slots of all the messages in flight.
+     * @return the messages which were in flight, oldest first.
+     */
+    synchronized List<DownstreamMessage> releaseAll() {
+        List<DownstreamMessage> released = new ArrayList<>(messages.size());
+        for (InFlight inFlight : messages.values()) {
+            released.add(inFlight.message);
+        }
+        messages.clear();
+        return released;
+    }
+
+    /**
+     * Get the number of messages in flight.
+     * @return the number of unacknowledged messages.
+     */
+    synchronized int size() {
+        return messages.size();
+    }
+
+    /**
+     * Indicates whether a new message can be sent.
+     * @return true if the window is not full.
+     */
+    synchronized boolean hasRoom() {
+        return messages.size() < capacity;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
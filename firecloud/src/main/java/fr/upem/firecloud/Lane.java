@@ -0,0 +1,54 @@
+package fr.upem.firecloud;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outbound lanes of the downstream messages, by priority.
+ *
+ * The lanes are served in proportion to their weight while they all have
+ * messages, so a burst of positions never holds back the replies a device is
+ * waiting for. The positions are only worth sending while they are recent : a
+ * position waiting longer than its maximum age is dropped, the next tick of
+ * the coalescer sends a newer one.
+ */
+enum Lane {
+
+    /**
+     * Direct replies a device is blocked on, such as receivedEventID.
+     */
+    INTERACTIVE(ServerConfig.LANE_INTERACTIVE_WEIGHT, 0),
+
+    /**
+     * Answers of the list queries and of the syncs.
+     */
+    CRUD(ServerConfig.LANE_CRUD_WEIGHT, 0),
+
+    /**
+     * Fan-out of the positions, dropped when late.
+     */
+    BEST_EFFORT(ServerConfig.LANE_BEST_EFFORT_WEIGHT, ServerConfig.LANE_BEST_EFFORT_MAX_AGE_MILLIS);
+
+    private final int weight;
+    private final long maxAgeNanos;
+
+    Lane(int weight, long maxAgeMillis) {
+        this.weight = Math.max(1, weight);
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Get the number of messages of this lane sent in a round, when every lane has messages.
+     * @return the weight, at least 1.
+     */
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Get the time after which a message of this lane is not worth sending anymore.
+     * @return the maximum age in nanoseconds, 0 if the messages never age out.
+     */
+    long getMaxAgeNanos() {
+        return maxAgeNanos;
+    }
+}
@@ -0,0 +1,229 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queues of the downstream messages, one by {@link Lane}, served by
+ * weighted round robin.
+ *
+ * Each lane gets as many turns per round as its weight, and the empty lanes
+ * give their turns to the others, so the sender threads never wait while a
+ * lane has messages. The producers of a full lane are blocked, except in a
+ * lane whose messages age out : its oldest message is dropped instead, since
+ * it would be the first to be too old. The messages older than the maximum
+ * age of their lane are dropped when they reach the head of the lane.
+ *
+ * @param <E> the type of the queued messages.
+ */
+class LaneQueue<E> {
+
+    private static final class Entry<E> {
+        private final E element;
+        private final long queuedNanos;
+
+        private Entry(E element, long queuedNanos) {
+            this.element = element;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    private static final Lane[] LANES = Lane.values();
+
+    private final int capacity;
+    private final List<ArrayDeque<Entry<E>>> lanes = new ArrayList<>(LANES.length);
+    // Turns left to each lane in the current round
+    private final int[] credits = new int[LANES.length];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong agedOut = new AtomicLong();
+    private int size;
+
+    /**
+     * Creates a new LaneQueue.
+     * @param capacity the maximum number of messages waiting in each lane.
+     */
+    LaneQueue(int capacity) {
+        this.capacity = capacity;
+        for (Lane lane : LANES) {
+            lanes.add(new ArrayDeque<Entry<E>>());
+            credits[lane.ordinal()] = lane.getWeight();
+        }
+    }
+
+    /**
+     * Adds a message to its lane, waiting for some room if the lane is full
+     * and its messages do not age out.
+     * @param element the message.
+     * @param lane the lane of the message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void put(E element, Lane lane) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Entry<E>> queue = lanes.get(lane.ordinal());
+            while (queue.size() >= capacity && !dropOldest(queue, lane)) {
+                notFull.await();
+            }
+            add(queue, element);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a message to its lane, waiting at most the given time if the lane is full.
+     * @param element the message.
+     * @param lane the lane of the message.
+     * @param timeout how long to wait before giving up.
+     * @param unit the unit of the timeout.
+     * @return true if the message has been queued, false if the lane stayed full.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean offer(E element, Lane lane, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Entry<E>> queue = lanes.get(lane.ordinal());
+            while (queue.size() >= capacity && !dropOldest(queue, lane)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            add(queue, element);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next message to send, waiting for one if all the lanes are empty.
+     * @return the message.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                expire(System.nanoTime());
+                if (size > 0) {
+                    break;
+                }
+                notEmpty.await();
+            }
+            int next = nextLane();
+            if (next < 0) {
+                // Every lane with messages used its turns, start a new round
+                for (Lane lane : LANES) {
+                    credits[lane.ordinal()] = lane.getWeight();
+                }
+                next = nextLane();
+            }
+            credits[next]--;
+            size--;
+            notFull.signalAll();
+            return lanes.get(next).pollFirst().element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tells if no message is waiting in any lane.
+     * @return true if all the lanes are empty.
+     */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get the number of messages waiting in all the lanes.
+     * @return the number of messages.
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages waiting in a lane.
+     * @param lane the lane.
+     * @return the number of messages.
+     */
+    int size(Lane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages dropped because they were too old, or the
+     * oldest of their full lane.
+     * @return the number of messages aged out.
+     */
+    long getAgedOutCount() {
+        return agedOut.get();
+    }
+
+    private void add(ArrayDeque<Entry<E>> queue, E element) {
+        queue.addLast(new Entry<>(element, System.nanoTime()));
+        size++;
+        notEmpty.signal();
+    }
+
+    private boolean dropOldest(ArrayDeque<Entry<E>> queue, Lane lane) {
+        if (lane.getMaxAgeNanos() == 0) {
+            return false;
+        }
+        queue.pollFirst();
+        size--;
+        agedOut.incrementAndGet();
+        return true;
+    }
+
+    private void expire(long now) {
+        boolean expired = false;
+        for (Lane lane : LANES) {
+            if (lane.getMaxAgeNanos() == 0) {
+                continue;
+            }
+            ArrayDeque<Entry<E>> queue = lanes.get(lane.ordinal());
+            while (!queue.isEmpty() && now - queue.peekFirst().queuedNanos > lane.getMaxAgeNanos()) {
+                queue.pollFirst();
+                size--;
+                agedOut.incrementAndGet();
+                expired = true;
+            }
+        }
+        if (expired) {
+            notFull.signalAll();
+        }
+    }
+
+    /**
+     * Get the first lane by priority with messages and turns left.
+     */
+    private int nextLane() {
+        for (int i = 0; i < LANES.length; i++) {
+            if (credits[i] > 0 && !lanes.get(i).isEmpty()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
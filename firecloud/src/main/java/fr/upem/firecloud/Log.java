@@ -0,0 +1,247 @@
+package fr.upem.firecloud;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous logger of the server, with the same API as android.util.Log.
+ *
+ * Callers only put their entry in a bounded ring buffer and never wait for the
+ * console : a single background thread formats and writes the entries. When
+ * the buffer is full, entries are dropped and counted instead of slowing the
+ * packet path down. Entries below the level set with -Dfirecloud.log.level are
+ * discarded right away, and packet dumps are disabled unless -Dfirecloud.log.packets=true.
+ */
+public final class Log {
+
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String[] LEVEL_NAMES = {"", "", "V", "D", "I", "W", "E"};
+
+    /**
+     * An entry waiting to be written.
+     */
+    private static class Entry {
+        private final long time;
+        private final int level;
+        private final String tag;
+        private final String message;
+        private final Throwable throwable;
+        private final String thread;
+
+        private Entry(int level, String tag, String message, Throwable throwable) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+            this.throwable = throwable;
+            this.thread = Thread.currentThread().getName();
+        }
+    }
+
+    private static final int LEVEL = parseLevel(System.getProperty("firecloud.log.level", "INFO"));
+    private static final boolean PACKET_DUMP = Boolean.getBoolean("firecloud.log.packets");
+    private static final int SAMPLE_RATE = Integer.getInteger("firecloud.log.sample", 100);
+
+    private static final BlockingQueue<Entry> buffer =
+            new ArrayBlockingQueue<>(Integer.getInteger("firecloud.log.buffer", 8192));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ConcurrentHashMap<String, AtomicLong> sampleCounters = new ConcurrentHashMap<>();
+    private static final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 16384), false);
+    private static final Object flushLock = new Object();
+    private static final AtomicLong logged = new AtomicLong();
+    private static volatile long written;
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "firecloud-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {
+
+    }
+
+    private static int parseLevel(String level) {
+        switch (level.toUpperCase()) {
+            case "VERBOSE":
+                return VERBOSE;
+            case "DEBUG":
+                return DEBUG;
+            case "WARN":
+                return WARN;
+            case "ERROR":
+                return ERROR;
+            default:
+                return INFO;
+        }
+    }
+
+    /**
+     * Checks whether the entries of a level are written.
+     * Use it to avoid building messages which would be discarded.
+     * @param level the level.
+     * @return true if the entries of this level are written.
+     */
+    public static boolean isLoggable(int level) {
+        return level >= LEVEL;
+    }
+
+    /**
+     * Checks whether the content of the packets sent and received should be dumped.
+     * @return true if packet dumps are enabled.
+     */
+    public static boolean isPacketDumpEnabled() {
+        return PACKET_DUMP;
+    }
+
+    /**
+     * Decides whether a frequent event of a given action should be logged,
+     * so that only one of every -Dfirecloud.log.sample events is written.
+     * @param action the action, each action is sampled on its own.
+     * @return true for the first event and then one in every sample rate events.
+     */
+    public static boolean isSampled(String action) {
+        if (SAMPLE_RATE <= 1) {
+            return true;
+        }
+        AtomicLong counter = sampleCounters.get(action);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = sampleCounters.putIfAbsent(action, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter.getAndIncrement() % SAMPLE_RATE == 0;
+    }
+
+    /**
+     * Get the number of entries dropped because the buffer was full.
+     * @return the number of dropped entries.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public static void v(String tag, String message) {
+        log(VERBOSE, tag, message, null);
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable throwable) {
+        log(WARN, tag, message, throwable);
+    }
+
+    public static void e(String tag, String message) {
+        log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable throwable) {
+        log(ERROR, tag, message, throwable);
+    }
+
+    private static void log(int level, String tag, String message, Throwable throwable) {
+        if (level < LEVEL) {
+            return;
+        }
+        if (buffer.offer(new Entry(level, tag, message, throwable))) {
+            logged.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until the entries logged so far have been written, at most the given time.
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     */
+    public static void flush(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long target = logged.get();
+        synchronized (flushLock) {
+            while (written < target) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return;
+                }
+                try {
+                    flushLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        List<Entry> entries = new ArrayList<>(256);
+        long reportedDrops = 0;
+        for (;;) {
+            try {
+                entries.add(buffer.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            buffer.drainTo(entries, 255);
+            for (Entry entry : entries) {
+                out.append(dateFormat.format(new Date(entry.time))).append(' ')
+                        .append(LEVEL_NAMES[entry.level]).append(' ')
+                        .append('[').append(entry.thread).append("] ")
+                        .append(entry.tag).append(" : ")
+                        .append(entry.message).append('\n');
+                if (entry.throwable != null) {
+                    entry.throwable.printStackTrace(out);
+                }
+            }
+            int count = entries.size();
+            entries.clear();
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                out.append("Log buffer full, ").append(String.valueOf(drops - reportedDrops))
+                        .append(" entries dropped\n");
+                reportedDrops = drops;
+            }
+            out.flush();
+            synchronized (flushLock) {
+                written += count;
+                flushLock.notifyAll();
+            }
+        }
+    }
+}
@@ -7,8 +7,21 @@ public class Message {
 
     private String from;
     private String messageId;
+    private String messageType;
+    private String category;
+    private String error;
+    private String errorDescription;
+    private String controlType;
 
     private Map<String, String> payload;
+    private long receivedNanos;
+
+    /**
+     * Creates an empty Message, filled by the {@link UpstreamDecoder}.
+     */
+    Message() {
+
+    }
 
     /**
      * Creates a new Message.
@@ -45,4 +58,88 @@ public class Message {
     public Map<String, String> getPayload() {
         return payload;
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the type of the message.
+     * @return "ack", "nack" or "control", null for an upstream data message
+     */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * Get the category of the message, which is the package of the application.
+     * @return the category
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     * Get the error code of a nack.
+     * @return the error code, null if the message is not a nack
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the description of the error of a nack.
+     * @return the error description, null if there is none
+     */
+    public String getErrorDescription() {
+        return errorDescription;
+    }
+
+    /**
+     * Get the type of a control message.
+     * @return the control type, null if the message is not a control message
+     */
+    public String getControlType() {
+        return controlType;
+    }
+
+    void setFrom(String from) {
+        this.from = from;
+    }
+
+    void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    void setMessageType(String messageType) {
+        this.messageType = messageType;
+    }
+
+    void setCategory(String category) {
+        this.category = category;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void setErrorDescription(String errorDescription) {
+        this.errorDescription = errorDescription;
+    }
+
+    void setControlType(String controlType) {
+        this.controlType = controlType;
+    }
+
+    void setPayload(Map<String, String> payload) {
+        this.payload = payload;
+    }
+
+    /**
+     * Get the time at which the message has been received.
+     * @return the value of System.nanoTime() at the receipt, 0 if unknown
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    void setReceivedNanos(long receivedNanos) {
+        this.receivedNanos = receivedNanos;
+    }
+}
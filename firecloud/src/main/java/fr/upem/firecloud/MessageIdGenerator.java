@@ -0,0 +1,44 @@
+package fr.upem.firecloud;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique ids for the downstream messages.
+ *
+ * An id is the id of the node, the time at which the generator was created
+ * and a counter, all in base 36. The node keeps the ids of two servers apart,
+ * the start time keeps the ids of two runs of the same server apart, and the
+ * counter is incremented without a lock. Ids stay short : about 15 characters.
+ */
+class MessageIdGenerator {
+
+    // Milliseconds since 1970 fit in 8 base 36 digits until 2059
+    private static final int EPOCH_DIGITS = 8;
+
+    private final String prefix;
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * Creates a new MessageIdGenerator.
+     * @param node the id of this server, unique among the servers sharing the GCM project.
+     * @param epochMillis the start time of this server, in milliseconds.
+     */
+    MessageIdGenerator(String node, long epochMillis) {
+        StringBuilder builder = new StringBuilder(node.length() + 1 + EPOCH_DIGITS);
+        builder.append(node).append(':');
+        String epoch = Long.toString(epochMillis, 36);
+        // Fixed width, so the counter which follows can not be mistaken for a part of the epoch
+        for (int i = epoch.length(); i < EPOCH_DIGITS; i++) {
+            builder.append('0');
+        }
+        this.prefix = builder.append(epoch).toString();
+    }
+
+    /**
+     * Get a new id, never returned before by any generator of another node or run.
+     * @return the message id.
+     */
+    String next() {
+        return prefix.concat(Long.toString(counter.getAndIncrement(), 36));
+    }
+}
@@ -0,0 +1,289 @@
+package fr.upem.firecloud;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Small HTTP server exposing the metrics of a {@link CcsClient} in the
+ * Prometheus text format, on GET /metrics.
+ *
+ * Scrapes are rare, so a single daemon thread handles the requests one by one
+ * and closes the connection after each response.
+ */
+class MetricsServer {
+
+    private static final String TAG = "MetricsServer";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int SO_TIMEOUT_MILLIS = 5000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private final CcsClient client;
+    private final String host;
+    private final int port;
+    private ServerSocket serverSocket;
+
+    /**
+     * Creates a new MetricsServer, not started yet.
+     * @param client the client whose metrics are served.
+     * @param host the address to listen on.
+     * @param port the port to listen on.
+     */
+    MetricsServer(CcsClient client, String host, int port) {
+        this.client = client;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Starts listening and serving the metrics.
+     * @throws IOException if the port can not be bound.
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(host), port));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "metrics-server");
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "Serving the metrics on http://" + host + ":" + serverSocket.getLocalPort() + "/metrics");
+    }
+
+    /**
+     * Stops listening.
+     */
+    void stop() {
+        if (serverSocket == null) {
+            return;
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "The metrics server could not be closed", e);
+        }
+    }
+
+    private void serve() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // Closed by stop()
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "A metrics request could not be accepted", e);
+                continue;
+            }
+            try {
+                handle(socket);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "A metrics request failed", e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing more to do with this socket
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        socket.setSoTimeout(SO_TIMEOUT_MILLIS);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+        String requestLine = reader.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        // The headers are not used, but read them so the client is not reset
+        String header;
+        while ((header = reader.readLine()) != null && !header.isEmpty()) {
+            // Ignored
+        }
+
+        String[] parts = requestLine.split(" ");
+        OutputStream out = socket.getOutputStream();
+        if (parts.length < 2 || !"GET".equals(parts[0])) {
+            respond(out, "405 Method Not Allowed", "text/plain", "Only GET is supported\n");
+        } else if (!"/metrics".equals(parts[1]) && !parts[1].startsWith("/metrics?")) {
+            respond(out, "404 Not Found", "text/plain", "Metrics are on /metrics\n");
+        } else {
+            respond(out, "200 OK", "text/plain; version=0.0.4; charset=utf-8", render());
+        }
+    }
+
+    private static void respond(OutputStream out, String status, String contentType, String body) throws IOException {
+        byte[] content = body.getBytes(UTF_8);
+        String headers = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        out.write(headers.getBytes(UTF_8));
+        out.write(content);
+        out.flush();
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text format.
+     */
+    String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        gauge(out, "firecloud_outbound_queue_depth", "Downstream messages waiting to be sent.",
+                client.getOutboundQueueDepth());
+        header(out, "firecloud_outbound_lane_depth", "gauge", "Downstream messages waiting to be sent, by lane.");
+        for (Lane lane : Lane.values()) {
+            sample(out, "firecloud_outbound_lane_depth", "lane", lane.name().toLowerCase(Locale.ROOT),
+                    client.getOutboundQueueDepth(lane));
+        }
+        counter(out, "firecloud_outbound_aged_out_total", "Downstream messages dropped before being sent because they were too old.",
+                client.getAgedOutCount());
+        gauge(out, "firecloud_upstream_queue_depth", "Upstream messages waiting for a worker.",
+                client.getUpstreamQueueDepth());
+
+        header(out, "firecloud_in_flight_messages", "gauge", "Downstream messages waiting for their ack, by connection.");
+        for (Map.Entry<String, Integer> entry : client.getInFlightCounts().entrySet()) {
+            sample(out, "firecloud_in_flight_messages", "connection", entry.getKey(), entry.getValue());
+        }
+
+        header(out, "firecloud_ack_round_trip_seconds", "summary", "Time between the sending of a downstream message and its ack or nack.");
+        summary(out, "firecloud_ack_round_trip_seconds", null, null, client.getAckLatency());
+
+        Map<String, ActionDispatcher.ActionStats> actions = client.getActionStats();
+        header(out, "firecloud_upstream_messages_total", "counter", "Upstream messages handled, by action.");
+        for (Map.Entry<String, ActionDispatcher.ActionStats> entry : actions.entrySet()) {
+            sample(out, "firecloud_upstream_messages_total", "action", entry.getKey(), entry.getValue().getCount());
+        }
+        header(out, "firecloud_upstream_errors_total", "counter", "Upstream messages whose handler failed, by action.");
+        for (Map.Entry<String, ActionDispatcher.ActionStats> entry : actions.entrySet()) {
+            sample(out, "firecloud_upstream_errors_total", "action", entry.getKey(), entry.getValue().getErrorCount());
+        }
+        counter(out, "firecloud_upstream_duplicates_total", "Upstream messages delivered again by CCS and not handled twice.",
+                client.getDuplicateCount());
+        header(out, "firecloud_upstream_rate_limited_total", "counter", "Upstream messages dropped over the rate limit of their device, by action.");
+        for (Map.Entry<String, Long> entry : client.getRateLimitedCounts().entrySet()) {
+            sample(out, "firecloud_upstream_rate_limited_total", "action", entry.getKey(), entry.getValue());
+        }
+        header(out, "firecloud_upstream_rate_delayed_total", "counter", "Upstream messages delayed by the rate limit of their device, by action.");
+        for (Map.Entry<String, Long> entry : client.getRateDelayedCounts().entrySet()) {
+            sample(out, "firecloud_upstream_rate_delayed_total", "action", entry.getKey(), entry.getValue());
+        }
+        gauge(out, "firecloud_rate_limit_buckets", "Devices and actions whose token bucket is not full.",
+                client.getRateLimitBucketCount());
+        counter(out, "firecloud_upstream_unknown_actions_total", "Upstream messages ignored because of an unknown action.",
+                client.getUnknownActionCount());
+        header(out, "firecloud_action_queue_seconds", "summary", "Time spent by upstream messages in the queues, by action.");
+        for (Map.Entry<String, ActionDispatcher.ActionStats> entry : actions.entrySet()) {
+            summary(out, "firecloud_action_queue_seconds", "action", entry.getKey(), entry.getValue().getQueueLatency());
+        }
+        header(out, "firecloud_action_database_seconds", "summary", "Time spent in the database by the handlers, by action.");
+        for (Map.Entry<String, ActionDispatcher.ActionStats> entry : actions.entrySet()) {
+            summary(out, "firecloud_action_database_seconds", "action", entry.getKey(), entry.getValue().getDatabaseLatency());
+        }
+        header(out, "firecloud_action_send_seconds", "summary", "Time spent queuing the replies, by action.");
+        for (Map.Entry<String, ActionDispatcher.ActionStats> entry : actions.entrySet()) {
+            summary(out, "firecloud_action_send_seconds", "action", entry.getKey(), entry.getValue().getSendLatency());
+        }
+
+        header(out, "firecloud_position_write_seconds", "summary", "Time spent writing the buffered positions in the database.");
+        summary(out, "firecloud_position_write_seconds", null, null, client.getPositionWriteLatency());
+        gauge(out, "firecloud_pending_positions", "Positions waiting for the next tick.",
+                client.getPendingPositionCount());
+        counter(out, "firecloud_superseded_positions_total", "Positions replaced by a newer one before the tick.",
+                client.getSupersededPositionCount());
+        counter(out, "firecloud_handed_off_positions_total", "Positions handed off to the node owning their event.",
+                client.getHandedOffPositionCount());
+        gauge(out, "firecloud_owned_partitions", "Partitions whose lease is held by this node.",
+                client.getOwnedPartitionCount());
+
+        ResponseCache responseCache = client.getResponseCache();
+        counter(out, "firecloud_response_cache_hits_total", "List queries answered from the cache.",
+                responseCache.getHitCount());
+        counter(out, "firecloud_response_cache_misses_total", "List queries answered from the database.",
+                responseCache.getMissCount());
+        counter(out, "firecloud_response_cache_evictions_total", "Cached answers evicted to stay under the maximum size.",
+                responseCache.getEvictionCount());
+        counter(out, "firecloud_response_cache_invalidations_total", "Cached answers removed by a write.",
+                responseCache.getInvalidationCount());
+        gauge(out, "firecloud_response_cache_bytes", "Approximate memory used by the cached answers.",
+                responseCache.getBytes());
+        counter(out, "firecloud_response_chunks_total", "Chunks of answers of list queries sent.",
+                client.getResponsePager().getChunkCount());
+        counter(out, "firecloud_response_restarts_total", "Continuation tokens of a list changed since, sent from the start.",
+                client.getResponsePager().getRestartCount());
+
+        counter(out, "firecloud_log_dropped_total", "Log entries dropped because the log buffer was full.",
+                Log.getDroppedCount());
+
+        Runtime runtime = Runtime.getRuntime();
+        gauge(out, "jvm_memory_heap_used_bytes", "Heap used.", runtime.totalMemory() - runtime.freeMemory());
+        gauge(out, "jvm_memory_heap_committed_bytes", "Heap committed.", runtime.totalMemory());
+        gauge(out, "jvm_memory_heap_max_bytes", "Maximum heap.", runtime.maxMemory());
+        gauge(out, "jvm_threads_live", "Live threads.", Thread.activeCount());
+        gauge(out, "jvm_available_processors", "Processors available to the JVM.", runtime.availableProcessors());
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, null, null, value);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        sample(out, name, null, null, value);
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"").append(escapeLabelValue(labelValue)).append("\"}");
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String label, String labelValue,
+                                LatencyHistogram histogram) {
+        String labels = label == null ? "" : label + "=\"" + escapeLabelValue(labelValue) + "\"";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                    .append("quantile=\"").append(quantile).append("\"} ")
+                    .append(toSeconds(histogram.getPercentileMicros(quantile * 100))).append('\n');
+        }
+        if (!labels.isEmpty()) {
+            labels = "{" + labels + "}";
+        }
+        out.append(name).append("_sum").append(labels).append(' ')
+                .append(toSeconds(histogram.getTotalMicros())).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static double toSeconds(long micros) {
+        return micros / 1e6;
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,231 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer of a list query, split into chunks which each fit in a GCM message.
+ *
+ * GCM refuses the messages whose data is larger than 4 KB, so the items are
+ * written once and packed in order into JSON arrays of at most the given size.
+ * An item larger than a chunk is sent alone. The version is a hash of the
+ * chunks : a continuation token refers to it, so the client starts over when
+ * the list changed between two pages, even if another node sends the next one.
+ *
+ * For the devices accepting it, the chunks larger than a threshold are
+ * deflated by {@link PayloadCodec}. The items are then packed up to a few
+ * times the size of a chunk, and a group whose encoded text is still too large
+ * is split in two until it fits.
+ */
+final class PagedResponse {
+
+    private static final String TAG = "PagedResponse";
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // JSON lists of events deflate to about a fifth of their size
+    private static final int DEFLATE_PACKING_FACTOR = 4;
+
+    private final List<RawJson> chunks;
+    private final BitSet deflated;
+    private final int itemCount;
+    private final String version;
+
+    private PagedResponse(List<RawJson> chunks, BitSet deflated, int itemCount, String version) {
+        this.chunks = chunks;
+        this.deflated = deflated;
+        this.itemCount = itemCount;
+        this.version = version;
+    }
+
+    /**
+     * Writes the items of a list and splits them into chunks.
+     * @param items the items of the answer, a collection, or null for an empty answer.
+     * @param maxChunkBytes the maximum size of a chunk in UTF-8.
+     * @return the answer split into chunks, with at least one chunk.
+     */
+    static PagedResponse of(Object items, int maxChunkBytes) {
+        return of(items, maxChunkBytes, false);
+    }
+
+    /**
+     * Writes the items of a list and splits them into chunks, deflated if accepted.
+     * @param items the items of the answer, a collection, or null for an empty answer.
+     * @param maxChunkBytes the maximum size of a chunk in UTF-8, once encoded.
+     * @param deflate true if the device accepts the deflated chunks.
+     * @return the answer split into chunks, with at least one chunk.
+     */
+    static PagedResponse of(Object items, int maxChunkBytes, boolean deflate) {
+        Collection<?> list = items instanceof Collection ? (Collection<?>) items : Collections.emptyList();
+        List<RawJson> chunks = new ArrayList<>();
+        BitSet deflated = new BitSet();
+        if (deflate) {
+            packDeflated(list, maxChunkBytes, chunks, deflated);
+            return new PagedResponse(chunks, deflated, list.size(), version(chunks));
+        }
+        List<RawJson> chunkItems = new ArrayList<>();
+        // The brackets of the array
+        int chunkBytes = 2;
+        for (Object item : list) {
+            RawJson json = StanzaWriter.raw(item);
+            int itemBytes = utf8Length(json.getJson());
+            int separator = chunkItems.isEmpty() ? 0 : 1;
+            if (!chunkItems.isEmpty() && chunkBytes + separator + itemBytes > maxChunkBytes) {
+                chunks.add(StanzaWriter.raw(chunkItems));
+                chunkItems.clear();
+                chunkBytes = 2;
+                separator = 0;
+            }
+            if (chunkItems.isEmpty() && 2 + itemBytes > maxChunkBytes) {
+                Log.w(TAG, "An item of " + itemBytes + " bytes does not fit in a chunk of " + maxChunkBytes
+                        + " bytes, it is sent alone.");
+            }
+            chunkItems.add(json);
+            chunkBytes += separator + itemBytes;
+        }
+        if (!chunkItems.isEmpty() || chunks.isEmpty()) {
+            chunks.add(StanzaWriter.raw(chunkItems));
+        }
+
+        return new PagedResponse(chunks, deflated, list.size(), version(chunks));
+    }
+
+    private static void packDeflated(Collection<?> list, int maxChunkBytes, List<RawJson> chunks, BitSet deflated) {
+        long maxGroupBytes = (long) maxChunkBytes * DEFLATE_PACKING_FACTOR;
+        List<RawJson> group = new ArrayList<>();
+        long groupBytes = 2;
+        for (Object item : list) {
+            RawJson json = StanzaWriter.raw(item);
+            int itemBytes = utf8Length(json.getJson());
+            if (!group.isEmpty() && groupBytes + 1 + itemBytes > maxGroupBytes) {
+                addDeflated(group, maxChunkBytes, chunks, deflated);
+                group = new ArrayList<>();
+                groupBytes = 2;
+            }
+            groupBytes += (group.isEmpty() ? 0 : 1) + itemBytes;
+            group.add(json);
+        }
+        if (!group.isEmpty() || chunks.isEmpty()) {
+            addDeflated(group, maxChunkBytes, chunks, deflated);
+        }
+    }
+
+    /**
+     * Adds a group of items as one chunk, deflated if it is large enough to
+     * gain from it, or as several ones if it does not fit.
+     */
+    private static void addDeflated(List<RawJson> group, int maxChunkBytes, List<RawJson> chunks, BitSet deflated) {
+        RawJson chunk = StanzaWriter.raw(group);
+        int chunkBytes = utf8Length(chunk.getJson());
+        boolean encoded = false;
+        if (chunkBytes >= ServerConfig.PAYLOAD_DEFLATE_MIN_BYTES) {
+            String base64 = PayloadCodec.deflate(chunk.getJson());
+            // The quotes of the string
+            if (base64.length() + 2 < chunkBytes) {
+                chunk = StanzaWriter.raw(base64);
+                chunkBytes = base64.length() + 2;
+                encoded = true;
+            }
+        }
+        if (chunkBytes > maxChunkBytes && group.size() > 1) {
+            int half = group.size() / 2;
+            addDeflated(group.subList(0, half), maxChunkBytes, chunks, deflated);
+            addDeflated(group.subList(half, group.size()), maxChunkBytes, chunks, deflated);
+            return;
+        }
+        if (chunkBytes > maxChunkBytes) {
+            Log.w(TAG, "An item of " + chunkBytes + " bytes does not fit in a chunk of " + maxChunkBytes
+                    + " bytes, it is sent alone.");
+        }
+        if (encoded) {
+            deflated.set(chunks.size());
+        }
+        chunks.add(chunk);
+    }
+
+    private static String version(List<RawJson> chunks) {
+        long hash = FNV_OFFSET_BASIS;
+        for (RawJson chunk : chunks) {
+            String json = chunk.getJson();
+            for (int i = 0; i < json.length(); i++) {
+                hash = (hash ^ json.charAt(i)) * FNV_PRIME;
+            }
+        }
+        return Long.toString(hash & Long.MAX_VALUE, 36);
+    }
+
+    /**
+     * Get the number of chunks.
+     * @return the number of chunks, at least 1.
+     */
+    int getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * Get a chunk of the answer.
+     * @param index the index of the chunk, starting at 0.
+     * @return the JSON array of the items of the chunk.
+     */
+    RawJson getChunk(int index) {
+        return chunks.get(index);
+    }
+
+    /**
+     * Tells if a chunk is deflated.
+     * @param index the index of the chunk, starting at 0.
+     * @return true if the chunk is a base64 string of the deflated JSON array.
+     */
+    boolean isDeflated(int index) {
+        return deflated.get(index);
+    }
+
+    /**
+     * Get the number of items of the whole answer.
+     * @return the number of items.
+     */
+    int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Get the version of the answer, which changes with its content.
+     * @return the version.
+     */
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the approximate memory used by the chunks.
+     * @return the size in bytes.
+     */
+    long getWeight() {
+        long weight = 0;
+        for (RawJson chunk : chunks) {
+            weight += chunk.getWeight();
+        }
+        return weight;
+    }
+
+    private static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,228 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Splits the users and events into hash partitions and keeps the leases of the
+ * partitions owned by this node, so several nodes can share the traffic.
+ *
+ * The leases are documents in Mongo which expire unless their owner renews
+ * them. Every third of the lease time, each node renews its leases, gives back
+ * the ones above its fair share and takes the free or expired ones up to it,
+ * the fair share being the number of partitions divided by the number of nodes
+ * holding a lease. A node stops considering a partition its own a third of
+ * the lease time before the lease expires, so a small clock skew between the
+ * nodes never makes two of them own the same partition.
+ *
+ * Without cluster mode, this node owns every partition.
+ */
+class PartitionLeases {
+
+    private static final String TAG = "PartitionLeases";
+
+    private final DataBaseCommunicator dataBaseCommunicator;
+    private final String nodeId;
+    private final int partitions;
+    private final long ttlMillis;
+    private final boolean clustered;
+    // System.nanoTime() until which each partition is owned, 0 if not owned
+    private final AtomicLongArray ownedUntil;
+    private final ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "partition-leases");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new PartitionLeases, not started yet.
+     * @param dataBaseCommunicator the database holding the leases.
+     * @param nodeId the id of this node, unique in the cluster.
+     * @param partitions the number of partitions, the same on every node.
+     * @param ttlMillis the duration of a lease.
+     * @param clustered false if this node is alone and owns every partition.
+     */
+    PartitionLeases(DataBaseCommunicator dataBaseCommunicator, String nodeId, int partitions, long ttlMillis,
+                    boolean clustered) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be positive : " + partitions);
+        }
+        this.dataBaseCommunicator = dataBaseCommunicator;
+        this.nodeId = nodeId;
+        this.partitions = partitions;
+        this.ttlMillis = ttlMillis;
+        this.clustered = clustered;
+        this.ownedUntil = new AtomicLongArray(partitions);
+    }
+
+    /**
+     * Starts taking and renewing the leases, in cluster mode only.
+     */
+    void start() {
+        if (!clustered) {
+            return;
+        }
+        long renewMillis = Math.max(1, ttlMillis / 3);
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "An error occurred while renewing the leases", e);
+                }
+            }
+        }, 0, renewMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops renewing the leases and gives them back, so the other nodes take
+     * them without waiting for their expiry.
+     */
+    void stop() {
+        if (!clustered) {
+            return;
+        }
+        renewer.shutdown();
+        try {
+            if (!renewer.awaitTermination(ttlMillis, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "The last renewal is still running.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Integer> owned = getOwnedPartitions();
+        for (int partition : owned) {
+            ownedUntil.set(partition, 0);
+        }
+        try {
+            dataBaseCommunicator.releaseLeases(nodeId, owned);
+            Log.i(TAG, owned.size() + " partitions released.");
+        } catch (RuntimeException e) {
+            Log.w(TAG, "The leases could not be released, they will expire.", e);
+        }
+    }
+
+    /**
+     * Tells if the nodes share the partitions.
+     * @return true in cluster mode.
+     */
+    boolean isClustered() {
+        return clustered;
+    }
+
+    /**
+     * Get the partition of a user or an event.
+     * @param key the _id of the user or the event, null is in partition 0.
+     * @return the partition, the same on every node.
+     */
+    int partitionOf(String key) {
+        if (key == null) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        // Spread the high bits, as HashMap does
+        hash ^= (hash >>> 16);
+        return (hash & 0x7FFFFFFF) % partitions;
+    }
+
+    /**
+     * Tells if this node owns a partition.
+     * @param partition the partition.
+     * @return true if the lease of the partition is held by this node.
+     */
+    boolean owns(int partition) {
+        if (!clustered) {
+            return true;
+        }
+        long until = ownedUntil.get(partition);
+        return until != 0 && System.nanoTime() - until < 0;
+    }
+
+    /**
+     * Tells if this node owns the partition of a user or an event.
+     * @param key the _id of the user or the event.
+     * @return true if the lease of its partition is held by this node.
+     */
+    boolean ownsKey(String key) {
+        return owns(partitionOf(key));
+    }
+
+    /**
+     * Get the partitions owned by this node.
+     * @return the owned partitions, in ascending order.
+     */
+    List<Integer> getOwnedPartitions() {
+        List<Integer> owned = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            if (owns(partition)) {
+                owned.add(partition);
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * Renews the owned leases, then gives back or takes leases to own a fair share of the partitions.
+     */
+    private void rebalance() {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        Map<Integer, String> owners = dataBaseCommunicator.getLeaseOwners(now);
+        Set<String> nodes = new HashSet<>(owners.values());
+        nodes.add(nodeId);
+        int fairShare = (partitions + nodes.size() - 1) / nodes.size();
+        // Trust the lease for two thirds of its time, whatever the clock of the other nodes
+        long validUntil = start + TimeUnit.MILLISECONDS.toNanos(ttlMillis - ttlMillis / 3);
+
+        List<Integer> owned = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            if (!nodeId.equals(owners.get(partition))) {
+                ownedUntil.set(partition, 0);
+                continue;
+            }
+            if (dataBaseCommunicator.acquireLease(partition, nodeId, now, now + ttlMillis)) {
+                ownedUntil.set(partition, validUntil);
+                owned.add(partition);
+            } else {
+                ownedUntil.set(partition, 0);
+            }
+        }
+
+        List<Integer> released = new ArrayList<>();
+        while (owned.size() > fairShare) {
+            int partition = owned.remove(owned.size() - 1);
+            // Stop working on it before another node can take it
+            ownedUntil.set(partition, 0);
+            released.add(partition);
+        }
+        dataBaseCommunicator.releaseLeases(nodeId, released);
+
+        int taken = 0;
+        for (int partition = 0; partition < partitions && owned.size() < fairShare; partition++) {
+            if (owners.containsKey(partition)) {
+                continue;
+            }
+            if (dataBaseCommunicator.acquireLease(partition, nodeId, now, now + ttlMillis)) {
+                ownedUntil.set(partition, validUntil);
+                owned.add(partition);
+                taken++;
+            }
+        }
+        if (taken > 0 || !released.isEmpty()) {
+            Log.i(TAG, "Now owning " + owned.size() + " of " + partitions + " partitions shared by "
+                    + nodes.size() + " nodes (" + taken + " taken, " + released.size() + " released).");
+        }
+    }
+}
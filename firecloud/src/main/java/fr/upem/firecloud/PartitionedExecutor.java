@@ -0,0 +1,169 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of worker threads where each task runs on the worker chosen by its key.
+ *
+ * Tasks with the same key (for instance the same device) run one after the
+ * other in submission order, while tasks with different keys run in parallel.
+ * Each worker has a bounded queue, and the submitter is blocked when it is full.
+ */
+class PartitionedExecutor {
+
+    private static final String TAG = "PartitionedExecutor";
+
+    private final String name;
+    private final List<BlockingQueue<Runnable>> queues;
+    private final List<Thread> workers;
+
+    private volatile boolean running;
+    private volatile boolean draining;
+
+    private static final Runnable WAKE_UP = new Runnable() {
+        @Override
+        public void run() {
+            // Only wakes a worker waiting for a task up
+        }
+    };
+
+    /**
+     * Creates a new PartitionedExecutor, not started yet.
+     * @param name the prefix of the name of the worker threads.
+     * @param partitions the number of workers.
+     * @param queueCapacity the maximum number of tasks waiting in the queue of each worker.
+     */
+    PartitionedExecutor(String name, int partitions, int queueCapacity) {
+        this.name = name;
+        this.queues = new ArrayList<>(partitions);
+        this.workers = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(queueCapacity);
+            queues.add(queue);
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(queue);
+                }
+            }, name + "-" + i));
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    void start() {
+        running = true;
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the worker threads. Tasks still in the queues are not run.
+     */
+    void stop() {
+        running = false;
+        draining = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Stops the worker threads once they have run the tasks already queued.
+     * The running tasks are not interrupted. No task must be queued afterwards.
+     */
+    void shutdown() {
+        draining = true;
+        running = false;
+        for (BlockingQueue<Runnable> queue : queues) {
+            // A full queue means that its worker is not waiting
+            queue.offer(WAKE_UP);
+        }
+    }
+
+    /**
+     * Waits for the worker threads to stop.
+     * @param timeout how long to wait.
+     * @param unit the unit of the timeout.
+     * @return true if all the workers have stopped, false if the timeout elapsed before.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining > 0) {
+                worker.join(remaining);
+            }
+            if (worker.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues a task on the worker of its key, waiting for some room if its queue is full.
+     * @param key the key of the task, tasks with equal keys run in order.
+     * @param task the task to run.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void execute(Object key, Runnable task) throws InterruptedException {
+        queues.get(partitionOf(key)).put(task);
+    }
+
+    /**
+     * Get the index of the worker running the tasks of a key.
+     * @param key the key of the task.
+     * @return the index of the worker.
+     */
+    int partitionOf(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        // Spread the high bits, the hash codes of the keys are often close to each other
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % queues.size();
+    }
+
+    /**
+     * Get the number of tasks waiting in all the queues.
+     * @return the total depth of the queues.
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<Runnable> queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        while (running) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            run(task);
+        }
+        // Shutting down : run the tasks left in the queue, unless stopped right away
+        Runnable task;
+        while (draining && (task = queue.poll()) != null) {
+            run(task);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, name + " : an error occurred while running a task", e);
+        }
+    }
+}
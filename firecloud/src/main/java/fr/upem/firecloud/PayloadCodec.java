@@ -0,0 +1,97 @@
+package fr.upem.firecloud;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the bulky fields of the messages for the devices which accept it.
+ *
+ * A device asks for it with "accept":"deflate" in its query. An encoded field
+ * is a string holding the deflated UTF-8 JSON in base64, and the message has
+ * "encoding":"deflate". Base64 has no character to escape in JSON nor XML,
+ * and the lists of events compress well, so a chunk holds several times more
+ * items than in plain JSON.
+ */
+final class PayloadCodec {
+
+    static final String ACCEPT = "accept";
+    static final String ENCODING = "encoding";
+    static final String DEFLATE = "deflate";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] BASE64_DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION);
+        }
+    };
+
+    private PayloadCodec() {
+
+    }
+
+    /**
+     * Tells if a query accepts the deflated fields.
+     * @param payload the payload of the query.
+     * @return true if "accept" contains deflate.
+     */
+    static boolean acceptsDeflate(Map<String, Object> payload) {
+        Object accept = payload.get(ACCEPT);
+        return accept instanceof String && ((String) accept).contains(DEFLATE);
+    }
+
+    /**
+     * Deflates a JSON text and writes it in base64.
+     * @param json the JSON text.
+     * @return the base64 text, without line breaks.
+     */
+    static String deflate(String json) {
+        byte[] input = json.getBytes(UTF_8);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, input.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] larger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, larger, 0, length);
+                buffer = larger;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return base64(buffer, length);
+    }
+
+    /**
+     * Writes bytes in base64 with padding, java.util.Base64 requiring Java 8.
+     * @param bytes the bytes to write.
+     * @param length the number of bytes to write, from the start of the array.
+     * @return the base64 text.
+     */
+    static String base64(byte[] bytes, int length) {
+        char[] out = new char[(length + 2) / 3 * 4];
+        int o = 0;
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+            out[o++] = BASE64_DIGITS[bits >>> 18];
+            out[o++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+            out[o++] = BASE64_DIGITS[(bits >>> 6) & 0x3F];
+            out[o++] = BASE64_DIGITS[bits & 0x3F];
+        }
+        if (i < length) {
+            int bits = (bytes[i] & 0xFF) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xFF) << 8 : 0);
+            out[o++] = BASE64_DIGITS[bits >>> 18];
+            out[o++] = BASE64_DIGITS[(bits >>> 12) & 0x3F];
+            out[o++] = i + 1 < length ? BASE64_DIGITS[(bits >>> 6) & 0x3F] : '=';
+            out[o++] = '=';
+        }
+        return new String(out);
+    }
+}
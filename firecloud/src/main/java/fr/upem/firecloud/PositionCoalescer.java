@@ -0,0 +1,292 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers the latest position of each user and writes them on a fixed tick.
+ *
+ * A position received before the previous one of the same user for the same
+ * event has been flushed replaces it. On each tick, all the buffered positions
+ * are written with a single bulk upsert, and each owner device gets one message
+ * with the positions of all the users of its events which moved. The owners
+ * getting the same positions share a single message, which the HTTP transport
+ * sends with one request. The positions are split into several messages when
+ * they do not fit in one, each with its "chunk" index and the "total".
+ *
+ * In cluster mode, the positions are coalesced by the node owning the
+ * partition of their event. The other nodes coalesce them too, then hand them
+ * off in the database on each tick, and the owner takes them on its next tick.
+ */
+class PositionCoalescer {
+
+    private static final String TAG = "PositionCoalescer";
+
+    /**
+     * Sends the same downstream message to several devices.
+     */
+    interface FanOut {
+        void send(List<String> devices, Map<String, Object> payload);
+    }
+
+    /**
+     * The latest position of a user, waiting for the next tick.
+     */
+    private static class PendingPosition {
+        private final String userId;
+        private final String eventId;
+        private final Map<String, Object> fields;
+
+        private PendingPosition(String userId, String eventId, Map<String, Object> fields) {
+            this.userId = userId;
+            this.eventId = eventId;
+            this.fields = fields;
+        }
+    }
+
+    private final DataBaseCommunicator dataBaseCommunicator;
+    private final PartitionLeases leases;
+    private final FanOut fanOut;
+    private final ConcurrentHashMap<String, PendingPosition> pending = new ConcurrentHashMap<>();
+    // Positions of the partitions owned by other nodes
+    private final ConcurrentHashMap<String, PendingPosition> foreign = new ConcurrentHashMap<>();
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "position-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new PositionCoalescer, not started yet.
+     * @param dataBaseCommunicator the database in which the positions are written.
+     * @param leases the partitions owned by this node.
+     * @param fanOut the sender of the positions to the owners.
+     */
+    PositionCoalescer(DataBaseCommunicator dataBaseCommunicator, PartitionLeases leases, FanOut fanOut) {
+        this.dataBaseCommunicator = dataBaseCommunicator;
+        this.leases = leases;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Starts flushing the buffered positions every tick.
+     * @param tickMillis the time between two flushes.
+     */
+    void start(long tickMillis) {
+        ticker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "An error occurred while flushing the positions", e);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the tick, then writes and sends the positions still buffered.
+     * @param timeout how long to wait for the running tick.
+     * @param unit the unit of the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        ticker.shutdown();
+        if (!ticker.awaitTermination(timeout, unit)) {
+            Log.w(TAG, "The last tick is still running, flushing the positions anyway.");
+        }
+        flush();
+    }
+
+    /**
+     * Buffers the position of a user, replacing the one not flushed yet.
+     * @param userId the _id of the user.
+     * @param eventId the _id of the event whose owners get the position.
+     * @param position the fields to set on the user, such as lat and lng.
+     */
+    void update(String userId, String eventId, Map<String, Object> position) {
+        String key = userId + '\n' + eventId;
+        ConcurrentHashMap<String, PendingPosition> buffer = leases.ownsKey(eventId) ? pending : foreign;
+        if (buffer.put(key, new PendingPosition(userId, eventId, position)) != null) {
+            superseded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of positions dropped because a newer one came before the tick.
+     * @return the number of superseded positions.
+     */
+    long getSupersededCount() {
+        return superseded.get();
+    }
+
+    /**
+     * Get the number of positions waiting for the next tick.
+     * @return the number of buffered positions.
+     */
+    int getPendingCount() {
+        return pending.size() + foreign.size();
+    }
+
+    /**
+     * Get the number of positions handed off to the nodes owning their event.
+     * @return the number of handed off positions.
+     */
+    long getHandedOffCount() {
+        return handedOff.get();
+    }
+
+    /**
+     * Get the time spent writing the positions of a tick in the database.
+     * @return the latencies of the bulk writes.
+     */
+    LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * Writes the buffered positions and sends them to the owners of their events.
+     */
+    void flush() {
+        Map<String, PendingPosition> latest = new LinkedHashMap<>();
+        if (leases.isClustered()) {
+            handOff();
+            // Handed off positions are older than the ones buffered here
+            for (Map<String, Object> work : dataBaseCommunicator.takeHandOffs(leases.getOwnedPartitions())) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> fields = (Map<String, Object>) work.get("position");
+                PendingPosition position = new PendingPosition((String) work.get("userId"),
+                        (String) work.get("eventId"), fields);
+                if (latest.put(position.userId + '\n' + position.eventId, position) != null) {
+                    superseded.incrementAndGet();
+                }
+            }
+        }
+        for (String key : pending.keySet()) {
+            PendingPosition position = pending.remove(key);
+            if (position != null && latest.put(key, position) != null) {
+                superseded.incrementAndGet();
+            }
+        }
+        if (latest.isEmpty()) {
+            return;
+        }
+        List<PendingPosition> positions = new ArrayList<>(latest.values());
+
+        Map<String, Map<String, Object>> updates = new HashMap<>();
+        Map<String, List<PendingPosition>> positionsByEvent = new HashMap<>();
+        for (PendingPosition position : positions) {
+            updates.put(position.userId, position.fields);
+            List<PendingPosition> eventPositions = positionsByEvent.get(position.eventId);
+            if (eventPositions == null) {
+                eventPositions = new ArrayList<>();
+                positionsByEvent.put(position.eventId, eventPositions);
+            }
+            eventPositions.add(position);
+        }
+        long start = System.nanoTime();
+        dataBaseCommunicator.updatePositions(updates);
+        writeLatency.recordSince(start);
+
+        // One message by owner device, even if it owns several events
+        Map<String, Map<String, Object>> users = dataBaseCommunicator.getUsersById(updates.keySet());
+        Map<String, List<Map<String, Object>>> positionsByDevice = new HashMap<>();
+        for (Map.Entry<String, List<PendingPosition>> entry : positionsByEvent.entrySet()) {
+            if (entry.getKey() == null) {
+                continue;
+            }
+            for (String device : dataBaseCommunicator.getOwnerDevices(entry.getKey())) {
+                List<Map<String, Object>> devicePositions = positionsByDevice.get(device);
+                if (devicePositions == null) {
+                    devicePositions = new ArrayList<>();
+                    positionsByDevice.put(device, devicePositions);
+                }
+                for (PendingPosition position : entry.getValue()) {
+                    Map<String, Object> user = users.get(position.userId);
+                    if (user == null) {
+                        continue;
+                    }
+                    Map<String, Object> userPosition = new HashMap<>(user);
+                    userPosition.put("lat", position.fields.get("lat"));
+                    userPosition.put("lng", position.fields.get("lng"));
+                    devicePositions.add(userPosition);
+                }
+            }
+        }
+        // Owners of the same events get the same positions
+        Map<List<Map<String, Object>>, List<String>> devicesByPositions = new HashMap<>();
+        for (Map.Entry<String, List<Map<String, Object>>> entry : positionsByDevice.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            List<String> devices = devicesByPositions.get(entry.getValue());
+            if (devices == null) {
+                devices = new ArrayList<>();
+                devicesByPositions.put(entry.getValue(), devices);
+            }
+            devices.add(entry.getKey());
+        }
+        for (Map.Entry<List<Map<String, Object>>, List<String>> entry : devicesByPositions.entrySet()) {
+            // About 20 users fill the 4 KB of a GCM message. The chunks may be dropped or
+            // reordered on the way, so each one is a plain list of positions on its own
+            PagedResponse chunks = PagedResponse.of(entry.getKey(), ServerConfig.PAGE_CHUNK_BYTES);
+            for (int index = 0; index < chunks.getChunkCount(); index++) {
+                Map<String, Object> payload = new HashMap<>();
+                payload.put("action", "receivedUserPositions");
+                payload.put("users", chunks.getChunk(index));
+                fanOut.send(entry.getValue(), payload);
+            }
+        }
+    }
+
+    /**
+     * Hands off the positions of the partitions owned by other nodes.
+     */
+    private void handOff() {
+        List<PendingPosition> positions = new ArrayList<>();
+        for (String key : foreign.keySet()) {
+            PendingPosition position = foreign.remove(key);
+            if (position != null) {
+                positions.add(position);
+            }
+        }
+        if (positions.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> work = new ArrayList<>(positions.size());
+        for (PendingPosition position : positions) {
+            Map<String, Object> map = new HashMap<>();
+            map.put("partition", leases.partitionOf(position.eventId));
+            map.put("userId", position.userId);
+            map.put("eventId", position.eventId);
+            map.put("position", position.fields);
+            work.add(map);
+        }
+        try {
+            dataBaseCommunicator.handOff(work);
+            handedOff.addAndGet(positions.size());
+        } catch (RuntimeException e) {
+            // Keep them for the next tick, unless a newer one came meanwhile
+            for (PendingPosition position : positions) {
+                foreign.putIfAbsent(position.userId + '\n' + position.eventId, position);
+            }
+            Log.e(TAG, "The positions of other partitions could not be handed off", e);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package fr.upem.firecloud;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the upstream messages of each device, by action.
+ *
+ * Each device has a token bucket per action : it holds up to "burst" messages
+ * and refills at "rate" messages per second. The bucket is kept as the single
+ * time at which it would be full again, updated with a compare-and-set, so
+ * the workers and the readers never take a lock for it. The buckets are in a
+ * concurrent map striped by device, and the full ones are swept regularly
+ * since they hold no information.
+ *
+ * A message over the limit is shed, or with the delay policy, handled once a
+ * token is available if that is soon enough, and shed otherwise. A shed
+ * message is acknowledged, so CCS does not deliver it again. While a message
+ * of a device is delayed, whatever its action, the next messages of this
+ * device are held back behind it, so they are still handled in order.
+ */
+class RateLimiter {
+
+    private static final String TAG = "RateLimiter";
+
+    private static final long SWEEP_PERIOD_MILLIS = 10000;
+
+    /**
+     * The rate and the burst of an action.
+     */
+    private static final class Limit {
+        private final long intervalNanos;
+        private final long burstNanos;
+
+        private Limit(double perSecond, int burst) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+            this.burstNanos = intervalNanos * Math.max(1, burst);
+        }
+    }
+
+    /**
+     * The messages of a device held back behind a delayed one, in arrival order.
+     */
+    private static final class Hold {
+        private final String from;
+        private final ArrayDeque<Held> messages = new ArrayDeque<>();
+        // Set once removed from the map, the next messages create a new hold
+        private boolean released;
+
+        private Hold(String from) {
+            this.from = from;
+        }
+    }
+
+    private static final class Held {
+        private final Runnable task;
+        private final long readyNanos;
+
+        private Held(Runnable task, long readyNanos) {
+            this.task = task;
+            this.readyNanos = readyNanos;
+        }
+    }
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> limits;
+    private final boolean delay;
+    private final long maxDelayNanos;
+    private final ConcurrentMap<String, AtomicLong> buckets;
+    private final ConcurrentMap<String, Hold> holds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> shed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> delayed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new RateLimiter.
+     * @param defaultLimit the limit of the actions without their own, "rate/burst", empty for no limit.
+     * @param actionLimits the limits by action, "action=rate/burst,...".
+     * @param policy "shed" or "delay".
+     * @param maxDelayMillis the longest delay given to a message, with the delay policy.
+     * @param stripes the expected number of threads calling the limiter at once, one per connection.
+     */
+    RateLimiter(String defaultLimit, String actionLimits, String policy, long maxDelayMillis, int stripes) {
+        this.defaultLimit = parseLimit(defaultLimit);
+        this.limits = new HashMap<>();
+        for (String entry : actionLimits.split(",")) {
+            int equals = entry.indexOf('=');
+            if (equals > 0) {
+                limits.put(entry.substring(0, equals).trim(), parseLimit(entry.substring(equals + 1)));
+            } else if (!entry.trim().isEmpty()) {
+                Log.w(TAG, "The rate limit " + entry + " is ignored, it should be action=rate/burst.");
+            }
+        }
+        if (!"shed".equals(policy) && !"delay".equals(policy)) {
+            Log.w(TAG, "Unknown rate limit policy " + policy + ", the messages over the limit are shed.");
+        }
+        this.delay = "delay".equals(policy);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.buckets = new ConcurrentHashMap<>(1024, 0.75f, Math.max(1, stripes));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_PERIOD_MILLIS, SWEEP_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes a token for a message.
+     * @param from the device which sent the message.
+     * @param action the action of the message, a registered one.
+     * @return 0 to handle the message now, the delay in nanoseconds before
+     *         handling it, or -1 if it is shed.
+     */
+    long acquire(String from, String action) {
+        Limit limit = limits.containsKey(action) ? limits.get(action) : defaultLimit;
+        if (limit == null) {
+            return 0;
+        }
+        String key = action + '\n' + from;
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        while (true) {
+            // The time at which the bucket would be full again
+            long fullAt = bucket.get();
+            long next = (fullAt - now < 0 ? now : fullAt) + limit.intervalNanos;
+            long wait = next - now - limit.burstNanos;
+            if (wait > 0 && (!delay || wait > maxDelayNanos)) {
+                count(shed, action);
+                return -1;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                if (wait > 0) {
+                    count(delayed, action);
+                    return wait;
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Holds a message back until its token is available and the messages of
+     * its device delayed before it have been released.
+     * @param from the device which sent the message.
+     * @param task the handling of the message.
+     * @param delayNanos the delay given by {@link #acquire}, 0 if the message has its token.
+     * @return true if the task is run later by the limiter, false if it has to be run now.
+     */
+    boolean hold(String from, Runnable task, long delayNanos) {
+        for (;;) {
+            Hold hold = holds.get(from);
+            if (hold == null) {
+                if (delayNanos <= 0) {
+                    return false;
+                }
+                Hold created = new Hold(from);
+                created.messages.add(new Held(task, System.nanoTime() + delayNanos));
+                if (holds.putIfAbsent(from, created) != null) {
+                    continue;
+                }
+                if (!schedule(created, delayNanos)) {
+                    // Stopping : run it now rather than losing it
+                    holds.remove(from, created);
+                    return false;
+                }
+                return true;
+            }
+            synchronized (hold) {
+                if (!hold.released) {
+                    hold.messages.add(new Held(task, System.nanoTime() + Math.max(0, delayNanos)));
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of devices with messages held back.
+     * @return the number of devices.
+     */
+    int getHoldCount() {
+        return holds.size();
+    }
+
+    private boolean schedule(final Hold hold, long delayNanos) {
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    release(hold);
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the held messages whose token is available, in order, and waits
+     * again for the next one if any. Runs under the lock of the hold so the
+     * messages arriving meanwhile stay behind.
+     */
+    private void release(Hold hold) {
+        synchronized (hold) {
+            long now = System.nanoTime();
+            Held next;
+            while ((next = hold.messages.peek()) != null
+                    && (next.readyNanos - now <= 0 || scheduler.isShutdown())) {
+                hold.messages.poll();
+                run(next.task);
+            }
+            if (next != null && schedule(hold, next.readyNanos - now)) {
+                return;
+            }
+            // Stopping : nothing else may be scheduled, run the rest now
+            while ((next = hold.messages.poll()) != null) {
+                run(next.task);
+            }
+            hold.released = true;
+            holds.remove(hold.from, hold);
+        }
+    }
+
+    private static void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "An error occurred while releasing a delayed upstream message", e);
+        }
+    }
+
+    /**
+     * Runs the messages still held back right away, then stops.
+     * @param timeout how long to wait for a release in progress.
+     * @param unit the unit of the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        // Nothing is scheduled anymore, the held messages are released without waiting for their token
+        scheduler.shutdown();
+        for (Hold hold : holds.values()) {
+            release(hold);
+        }
+        scheduler.shutdownNow();
+        if (!scheduler.awaitTermination(timeout, unit)) {
+            Log.w(TAG, "The last delayed upstream messages are still being released.");
+        }
+    }
+
+    /**
+     * Get the number of messages shed, by action.
+     * @return the counts by action.
+     */
+    Map<String, Long> getShedCounts() {
+        return snapshot(shed);
+    }
+
+    /**
+     * Get the number of messages delayed, by action.
+     * @return the counts by action.
+     */
+    Map<String, Long> getDelayedCounts() {
+        return snapshot(delayed);
+    }
+
+    /**
+     * Get the number of devices and actions whose bucket is not full.
+     * @return the number of buckets.
+     */
+    int getBucketCount() {
+        return buckets.size();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        Iterator<AtomicLong> iterator = buckets.values().iterator();
+        while (iterator.hasNext()) {
+            long fullAt = iterator.next().get();
+            // A full bucket is the same as no bucket; a device racing with the
+            // removal at worst gets one more token
+            if (fullAt - now < 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void count(ConcurrentMap<String, AtomicLong> counts, String action) {
+        AtomicLong count = counts.get(action);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(action, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counts) {
+        Map<String, Long> snapshot = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    private static Limit parseLimit(String limit) {
+        if (limit == null || limit.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = limit.trim().split("/");
+        try {
+            double perSecond = Double.parseDouble(parts[0]);
+            int burst = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            if (perSecond <= 0) {
+                return null;
+            }
+            return new Limit(perSecond, burst);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "The rate limit " + limit + " is ignored, it should be rate/burst.");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package fr.upem.firecloud;
+
+/**
+ * A value already written as JSON, copied as is in the messages by {@link StanzaWriter}.
+ */
+final class RawJson {
+
+    private final String json;
+    private final String xml;
+
+    /**
+     * Creates a new RawJson.
+     * @param json the JSON text of the value.
+     * @param xml the same text escaped for XML, the same instance if nothing needed escaping.
+     */
+    RawJson(String json, String xml) {
+        this.json = json;
+        this.xml = xml;
+    }
+
+    /**
+     * Get the JSON text of the value.
+     * @return the JSON text
+     */
+    String getJson() {
+        return json;
+    }
+
+    /**
+     * Get the JSON text of the value, escaped for XML.
+     * @return the escaped JSON text
+     */
+    String getXml() {
+        return xml;
+    }
+
+    /**
+     * Get the approximate memory used by the texts.
+     * @return the size in bytes.
+     */
+    int getWeight() {
+        // 2 bytes per char, the escaped text is often the same instance
+        return 2 * json.length() + (xml == json ? 0 : 2 * xml.length());
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
@@ -0,0 +1,211 @@
+package fr.upem.firecloud;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the answers of the list queries already written as JSON and split
+ * into chunks, by query, user and encoding.
+ *
+ * The handlers of the writes invalidate the entries they change, and the least
+ * recently used entries are evicted once the cached texts reach the maximum
+ * size. A value loaded while an invalidation happens is returned but not kept,
+ * since it may have been read before the write.
+ *
+ * The writes handled by other nodes of a cluster do not invalidate the entries
+ * of this node, so the entries also have a maximum age.
+ */
+class ResponseCache {
+
+    /**
+     * Reads the value of a query in the database.
+     */
+    interface Loader {
+        Object load();
+    }
+
+    private static class Entry {
+        private final PagedResponse value;
+        private final long loadedNanos;
+
+        private Entry(PagedResponse value, long loadedNanos) {
+            this.value = value;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final int maxChunkBytes;
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long generation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a new ResponseCache.
+     * @param maxBytes the maximum size of the cached texts, 0 disables the cache.
+     * @param maxAgeNanos the time after which an entry is loaded again, even if not invalidated.
+     * @param maxChunkBytes the maximum size of a chunk of an answer.
+     */
+    ResponseCache(long maxBytes, long maxAgeNanos, int maxChunkBytes) {
+        this.maxBytes = maxBytes;
+        this.maxAgeNanos = maxAgeNanos;
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    /**
+     * Get the answer of a query, from the cache or from the loader.
+     * @param query the name of the query, such as getAllEventsOwned.
+     * @param userId the user the query is about, null if the query does not depend on the user.
+     * @param deflate true for the chunks deflated by {@link PayloadCodec}.
+     * @param loader the reader of the value when it is not cached.
+     * @return the value, written as JSON and split into chunks.
+     */
+    PagedResponse get(String query, String userId, boolean deflate, Loader loader) {
+        String key = key(query, userId, deflate);
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.loadedNanos < maxAgeNanos) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        long loadedNanos = System.nanoTime();
+        PagedResponse value = PagedResponse.of(loader.load(), maxChunkBytes, deflate);
+        if (value.getWeight() > maxBytes) {
+            return value;
+        }
+        synchronized (this) {
+            if (generation != loadGeneration) {
+                // Invalidated while loading, the value may be stale
+                return value;
+            }
+            Entry previous = entries.put(key, new Entry(value, loadedNanos));
+            if (previous != null) {
+                bytes -= weight(key, previous);
+            }
+            bytes += weight(key, value);
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                eldest.remove();
+                bytes -= weight(evicted.getKey(), evicted.getValue());
+                evictions.incrementAndGet();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes the answers of a query for some users.
+     * @param query the name of the query.
+     * @param userIds the users whose answer changed.
+     */
+    synchronized void invalidate(String query, Collection<String> userIds) {
+        generation++;
+        for (String userId : userIds) {
+            remove(key(query, userId, false));
+            remove(key(query, userId, true));
+        }
+    }
+
+    /**
+     * Removes the answer of a query which does not depend on the user.
+     * @param query the name of the query.
+     */
+    synchronized void invalidate(String query) {
+        generation++;
+        remove(key(query, null, false));
+        remove(key(query, null, true));
+    }
+
+    /**
+     * Removes the answers of a query for all the users.
+     * @param query the name of the query.
+     */
+    synchronized void invalidateAll(String query) {
+        generation++;
+        String prefix = query + '\n';
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                iterator.remove();
+                bytes -= weight(entry.getKey(), entry.getValue());
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Get the number of answers found in the cache.
+     * @return the number of hits.
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of answers loaded from the database.
+     * @return the number of misses.
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of answers evicted to stay under the maximum size.
+     * @return the number of evictions.
+     */
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of answers removed by a write.
+     * @return the number of invalidations.
+     */
+    long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Get the approximate memory used by the cached answers.
+     * @return the size in bytes.
+     */
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= weight(key, entry);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    private static String key(String query, String userId, boolean deflate) {
+        String encoding = deflate ? PayloadCodec.DEFLATE + '\n' : "\n";
+        return userId == null ? query + '\n' + encoding : query + '\n' + encoding + userId;
+    }
+
+    private static long weight(String key, Entry entry) {
+        return weight(key, entry.value);
+    }
+
+    private static long weight(String key, PagedResponse value) {
+        return 2L * key.length() + value.getWeight();
+    }
+}
@@ -0,0 +1,203 @@
+package fr.upem.firecloud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the chunks of the answers of the list queries.
+ *
+ * A query gets its first chunk, or the few first ones if it asks for them
+ * with "prefetch", paced so a device does not get a burst of messages. The
+ * last chunk sent carries a continuation token while chunks remain, and the
+ * device asks for the next ones with it when it is ready. Each chunk has its
+ * index, the total number of chunks and the total number of items; a device
+ * getting the chunk 0 starts its list over.
+ */
+class ResponsePager {
+
+    private static final String TAG = "ResponsePager";
+
+    /**
+     * Where a device stopped in an answer : its version, the next chunk and the
+     * key of the query, such as the user it is about.
+     */
+    static final class Token {
+        private final String version;
+        private final int index;
+        private final String key;
+
+        private Token(String version, int index, String key) {
+            this.version = version;
+            this.index = index;
+            this.key = key;
+        }
+
+        /**
+         * Reads a continuation token sent back by a device.
+         * @param token the token, may be null.
+         * @return the token, or null if it is missing or invalid.
+         */
+        static Token parse(String token) {
+            if (token == null) {
+                return null;
+            }
+            // The key may contain the separator, it comes last
+            String[] parts = token.split(":", 3);
+            if (parts.length < 3) {
+                return null;
+            }
+            try {
+                return new Token(parts[0], Integer.parseInt(parts[1]), parts[2].isEmpty() ? null : parts[2]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Get the key of the query, such as the user it is about.
+         * @return the key, null if the query does not depend on the user.
+         */
+        String getKey() {
+            return key;
+        }
+
+        @Override
+        public String toString() {
+            return version + ':' + index + ':' + (key == null ? "" : key);
+        }
+    }
+
+    private final int maxPrefetch;
+    private final long pacingMillis;
+    private final AtomicLong chunksSent = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "response-pager");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new ResponsePager.
+     * @param maxPrefetch the maximum number of chunks sent for one query.
+     * @param pacingMillis the time between two chunks sent for one query.
+     */
+    ResponsePager(int maxPrefetch, long pacingMillis) {
+        this.maxPrefetch = Math.max(1, maxPrefetch);
+        this.pacingMillis = pacingMillis;
+    }
+
+    /**
+     * Sends the chunks asked by a list query.
+     * @param sender the sender of the answers.
+     * @param to the device which sent the query.
+     * @param action the action of the answers, such as receivedEventsOwned.
+     * @param field the field of the answers holding the items, such as events.
+     * @param key the key of the query, such as the user it is about, returned in the token.
+     * @param response the whole answer.
+     * @param token the continuation token sent by the device, null for the first chunk.
+     * @param prefetch the number of chunks asked by the device.
+     */
+    void send(ActionHandler.Sender sender, String to, String action, String field, String key,
+              PagedResponse response, Token token, int prefetch) {
+        send(sender, to, action, field, key, response, token, prefetch, null);
+    }
+
+    /**
+     * Sends the chunks asked by a list query, with the same extra fields in each chunk.
+     * @param sender the sender of the answers.
+     * @param to the device which sent the query.
+     * @param action the action of the answers, such as receivedEventsOwned.
+     * @param field the field of the answers holding the items, such as events.
+     * @param key the key of the query, such as the user it is about, returned in the token.
+     * @param response the whole answer.
+     * @param token the continuation token sent by the device, null for the first chunk.
+     * @param prefetch the number of chunks asked by the device.
+     * @param extra the other fields of the answers, may be null.
+     */
+    void send(final ActionHandler.Sender sender, final String to, String action, String field, String key,
+              PagedResponse response, Token token, int prefetch, Map<String, Object> extra) {
+        int first = 0;
+        if (token != null) {
+            if (token.version.equals(response.getVersion()) && token.index < response.getChunkCount()) {
+                first = token.index;
+            } else {
+                // The list changed since the previous chunk, start over
+                restarts.incrementAndGet();
+            }
+        }
+        int last = Math.min(response.getChunkCount(), first + Math.max(1, Math.min(prefetch, maxPrefetch))) - 1;
+        for (int index = first; index <= last; index++) {
+            final Map<String, Object> payload = new HashMap<>();
+            if (extra != null) {
+                payload.putAll(extra);
+            }
+            payload.put("action", action);
+            payload.put(field, response.getChunk(index));
+            if (response.isDeflated(index)) {
+                payload.put(PayloadCodec.ENCODING, PayloadCodec.DEFLATE);
+            }
+            payload.put("chunk", index);
+            payload.put("total", response.getChunkCount());
+            payload.put("count", response.getItemCount());
+            if (index == last && last + 1 < response.getChunkCount()) {
+                payload.put("token", new Token(response.getVersion(), last + 1, key).toString());
+            }
+            chunksSent.incrementAndGet();
+            if (index == first) {
+                sender.send(to, payload, Lane.CRUD);
+                continue;
+            }
+            try {
+                pacer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sender.send(to, payload, Lane.CRUD);
+                    }
+                }, (index - first) * pacingMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "The chunk " + index + " of " + action + " to " + to + " is dropped, the server is stopping.");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the paced chunks still waiting, then stops.
+     * @param timeout how long to wait for the chunks.
+     * @param unit the unit of the timeout.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        pacer.shutdown();
+        if (!pacer.awaitTermination(timeout, unit)) {
+            int dropped = pacer.shutdownNow().size();
+            Log.w(TAG, dropped + " paced chunks have been dropped.");
+        }
+    }
+
+    /**
+     * Get the number of chunks sent.
+     * @return the number of chunks.
+     */
+    long getChunkCount() {
+        return chunksSent.get();
+    }
+
+    /**
+     * Get the number of continuation tokens which referred to a list changed since.
+     * @return the number of restarts.
+     */
+    long getRestartCount() {
+        return restarts.get();
+    }
+}
@@ -0,0 +1,245 @@
+package fr.upem.firecloud;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the sending of the downstream messages which have been nacked
+ * again, with an exponential backoff.
+ *
+ * Each GCM error code has its own policy : some errors are not worth a retry
+ * (an unregistered device stays unregistered), some are retried right away
+ * (a draining connection) and the rate limits are backed off harder. The
+ * same scheduler serves the stanzas of CCS and the requests of the HTTP
+ * endpoint, each transport being the target of its own messages.
+ *
+ * @param <M> the type of the retried messages.
+ */
+class RetryScheduler<M extends RetryScheduler.Retryable<M>> {
+
+    private static final String TAG = "RetryScheduler";
+
+    /**
+     * Error code used for the messages whose ack never came.
+     */
+    static final String ACK_TIMEOUT = "ACK_TIMEOUT";
+
+    /**
+     * A message which can be sent again.
+     * @param <M> the type of the message.
+     */
+    interface Retryable<M> {
+
+        /**
+         * Get the number of the sending attempt of this message, starting at 1.
+         * @return the attempt number.
+         */
+        int getAttempt();
+
+        /**
+         * Get the same message for its next sending attempt.
+         * @return a copy of the message with the attempt number incremented.
+         */
+        M nextAttempt();
+
+        /**
+         * Describes the message in the logs.
+         * @return the description, such as its id and its target.
+         */
+        String describe();
+    }
+
+    /**
+     * The queue in which the retried messages are sent again.
+     * @param <M> the type of the messages.
+     */
+    interface Target<M> {
+
+        /**
+         * Queues a message again, without waiting.
+         * @param message the message, for its next attempt.
+         * @return false if the queue is full, the message is then offered again later.
+         * @throws InterruptedException if interrupted.
+         */
+        boolean offer(M message) throws InterruptedException;
+    }
+
+    /**
+     * How a message is retried after a given error.
+     */
+    static class Policy {
+        private final int maxAttempts;
+        private final long baseDelayMillis;
+        private final long maxDelayMillis;
+
+        /**
+         * Creates a new Policy.
+         * @param maxAttempts the maximum number of sending attempts, including the first one.
+         * @param baseDelayMillis the delay before the first retry, doubled on every retry.
+         * @param maxDelayMillis the maximum delay between two attempts.
+         */
+        Policy(int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        /**
+         * Get the maximum number of sending attempts, including the first one.
+         * @return the maximum number of attempts.
+         */
+        int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        /**
+         * Get the delay before the given attempt, without jitter.
+         * @param attempt the number of the attempt which failed, starting at 1.
+         * @return the delay in milliseconds.
+         */
+        long delayMillis(int attempt) {
+            int shift = Math.min(attempt - 1, 30);
+            return Math.min(baseDelayMillis << shift, maxDelayMillis);
+        }
+    }
+
+    private static final Policy NO_RETRY = new Policy(1, 0, 0);
+
+    private final Map<String, Policy> policies;
+    private final Target<M> target;
+    private final Random random = new Random();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "downstream-retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a new RetryScheduler, with the default policies.
+     * @param target the queue in which the retried messages are sent again.
+     */
+    RetryScheduler(Target<M> target) {
+        this(target, defaultPolicies());
+    }
+
+    /**
+     * Creates a new RetryScheduler.
+     * @param target the queue in which the retried messages are sent again.
+     * @param policies the policy of each error code, errors without a policy are not retried.
+     */
+    RetryScheduler(Target<M> target, Map<String, Policy> policies) {
+        this.target = target;
+        this.policies = policies;
+    }
+
+    /**
+     * Get the default policy of each GCM error code.
+     * @return the policies by error code.
+     */
+    static Map<String, Policy> defaultPolicies() {
+        int attempts = ServerConfig.RETRY_MAX_ATTEMPTS;
+        long delay = ServerConfig.RETRY_BASE_DELAY_MILLIS;
+        long maxDelay = ServerConfig.RETRY_MAX_DELAY_MILLIS;
+
+        Map<String, Policy> policies = new HashMap<>();
+        policies.put("SERVICE_UNAVAILABLE", new Policy(attempts, delay, maxDelay));
+        policies.put("INTERNAL_SERVER_ERROR", new Policy(attempts, delay, maxDelay));
+        policies.put(ACK_TIMEOUT, new Policy(attempts, delay, maxDelay));
+        // The device or the topic gets too many messages, wait longer
+        policies.put("DEVICE_MESSAGE_RATE_EXCEEDED", new Policy(attempts, delay * 10, maxDelay * 5));
+        policies.put("TOPICS_MESSAGE_RATE_EXCEEDED", new Policy(attempts, delay * 10, maxDelay * 5));
+        // Another connection of the pool takes the message right away
+        policies.put("CONNECTION_DRAINING", new Policy(attempts, 0, 0));
+        // BAD_REGISTRATION, DEVICE_UNREGISTERED, INVALID_JSON, BAD_ACK... are not retried
+        return policies;
+    }
+
+    /**
+     * Schedules a new attempt of a message which failed, if its policy allows it.
+     * @param message the message which failed.
+     * @param error the GCM error code.
+     * @return true if a new attempt has been scheduled, false if the message is dropped.
+     */
+    boolean retry(M message, String error) {
+        return retry(message, error, 0);
+    }
+
+    /**
+     * Schedules a new attempt of a message which failed, if its policy allows it,
+     * not before the time asked by GCM.
+     * @param message the message which failed.
+     * @param error the GCM error code.
+     * @param minDelayMillis the minimum delay before the next attempt, from a Retry-After header.
+     * @return true if a new attempt has been scheduled, false if the message is dropped.
+     */
+    boolean retry(M message, String error, long minDelayMillis) {
+        Policy policy = policies.get(error);
+        if (policy == null) {
+            policy = NO_RETRY;
+        }
+        if (message.getAttempt() >= policy.maxAttempts) {
+            Log.w(TAG, "The " + message.describe() + " failed with " + error + " after "
+                    + message.getAttempt() + " attempt(s), it is dropped.");
+            return false;
+        }
+        long delay = Math.max(minDelayMillis, jitter(policy.delayMillis(message.getAttempt())));
+        if (Log.isLoggable(Log.DEBUG)) {
+            Log.d(TAG, "The " + message.describe() + " failed with " + error + ", retrying in " + delay + " ms.");
+        }
+        schedule(message.nextAttempt(), delay);
+        return true;
+    }
+
+    /**
+     * Spreads the retries between half and the whole delay, so the messages
+     * nacked together are not all sent again at the same time.
+     */
+    private long jitter(long delayMillis) {
+        if (delayMillis <= 1) {
+            return delayMillis;
+        }
+        long half = delayMillis / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delayMillis - half));
+        }
+    }
+
+    private void schedule(final M message, final long delayMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!target.offer(message)) {
+                            // The outbound queue is full, do not block the other retries
+                            schedule(message, Math.max(delayMillis, ServerConfig.RETRY_BASE_DELAY_MILLIS));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "The retry of the " + message.describe() + " is dropped, the server is stopping.");
+        }
+    }
+
+    /**
+     * Stops the scheduler. The pending retries are dropped.
+     */
+    void stop() {
+        int dropped = executor.shutdownNow().size();
+        if (dropped > 0) {
+            Log.w(TAG, dropped + " pending retries have been dropped.");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package fr.upem.firecloud;
+
+/**
+ * Tuning parameters of the server.
+ * Every value can be overridden at launch with the matching system property,
+ * for instance -Dfirecloud.outbound.capacity=2000
+ */
+final class ServerConfig {
+
+    private ServerConfig() {
+
+    }
+
+    // Node constant, must be unique among the servers sharing the GCM project
+    static final String NODE_ID = System.getProperty("firecloud.node.id", "0");
+
+    // Upstream constant
+    static final int UPSTREAM_WORKERS = Integer.getInteger("firecloud.upstream.workers",
+            2 * Runtime.getRuntime().availableProcessors());
+    static final int UPSTREAM_QUEUE_CAPACITY = Integer.getInteger("firecloud.upstream.capacity", 1000);
+    static final int ACK_BATCH_SIZE = Integer.getInteger("firecloud.ack.batch", 32);
+    static final long ACK_BATCH_DELAY_MICROS = Long.getLong("firecloud.ack.delay", 2000L);
+    static final long POSITION_TICK_MILLIS = Long.getLong("firecloud.position.tick", 1500L);
+    static final int DEDUPE_CAPACITY = Integer.getInteger("firecloud.dedupe.capacity", 100000);
+    static final long DEDUPE_WINDOW_MILLIS = Long.getLong("firecloud.dedupe.window", 600000L);
+
+    // Rate limit constant, "rate/burst" in messages per second by device, an empty default disables it
+    static final String RATE_LIMIT_DEFAULT = System.getProperty("firecloud.rate.default", "5/20");
+    static final String RATE_LIMIT_ACTIONS = System.getProperty("firecloud.rate.actions",
+            "updatePosition=1/5,getAllUsers=0.5/5");
+    // "shed" drops the messages over the limit, "delay" handles them later, in order, if it is soon enough
+    static final String RATE_LIMIT_POLICY = System.getProperty("firecloud.rate.policy", "delay");
+    static final long RATE_LIMIT_MAX_DELAY_MILLIS = Long.getLong("firecloud.rate.maxDelay", 2000L);
+
+    // Database constant, development only : drops the users, the events and their log at each start
+    static final boolean DB_DROP_ON_START = Boolean.parseBoolean(System.getProperty("firecloud.db.dropOnStart", "false"));
+
+    // Cluster constant, every node of a cluster must use the same number of partitions
+    static final boolean CLUSTER_ENABLED = Boolean.parseBoolean(System.getProperty("firecloud.cluster", "false"));
+    static final int PARTITIONS = Integer.getInteger("firecloud.partitions", 64);
+    static final long LEASE_TTL_MILLIS = Long.getLong("firecloud.lease.ttl", 15000L);
+
+    // Response cache constant, a size of 0 disables the cache
+    static final long RESPONSE_CACHE_BYTES = Long.getLong("firecloud.cache.bytes", 8L * 1024 * 1024);
+    // Writes handled by the other nodes of a cluster are seen after this time
+    static final long RESPONSE_CACHE_CLUSTER_MAX_AGE_MILLIS = Long.getLong("firecloud.cache.clusterMaxAge", 5000L);
+
+    // Pagination constant, GCM refuses the messages with more than 4 KB of data
+    static final int PAGE_CHUNK_BYTES = Integer.getInteger("firecloud.page.bytes", 3584);
+    static final int PAGE_MAX_PREFETCH = Integer.getInteger("firecloud.page.maxPrefetch", 8);
+    static final long PAGE_PACING_MILLIS = Long.getLong("firecloud.page.pacing", 50L);
+    // The smaller chunks are not worth deflating for the devices which accept it
+    static final int PAYLOAD_DEFLATE_MIN_BYTES = Integer.getInteger("firecloud.payload.deflateMin", 512);
+
+    // Change log constant, the changes are visible to the syncs once sequenced, at most this late
+    static final long CHANGE_LOG_SEQUENCING_MILLIS = Long.getLong("firecloud.changes.sequencing", 200L);
+    static final long CHANGE_LOG_RETENTION_MILLIS = Long.getLong("firecloud.changes.retention", 7L * 24 * 3600 * 1000);
+    static final long CHANGE_LOG_COMPACTION_MILLIS = Long.getLong("firecloud.changes.compaction", 600000L);
+
+    // CCS constant, change them to use the CcsSimulator
+    static final String CCS_HOST = System.getProperty("firecloud.ccs.host", "gcm.googleapis.com");
+    static final int CCS_PORT = Integer.getInteger("firecloud.ccs.port", 5235);
+    static final boolean CCS_TLS = Boolean.parseBoolean(System.getProperty("firecloud.ccs.tls", "true"));
+
+    // Downstream constant
+    static final int CCS_CONNECTIONS = Integer.getInteger("firecloud.ccs.connections", 2);
+    static final int OUTBOUND_QUEUE_CAPACITY = Integer.getInteger("firecloud.outbound.capacity", 1000);
+
+    // Lane constant, the capacity above is by lane, the positions older than the maximum age are dropped
+    static final int LANE_INTERACTIVE_WEIGHT = Integer.getInteger("firecloud.lane.interactive.weight", 8);
+    static final int LANE_CRUD_WEIGHT = Integer.getInteger("firecloud.lane.crud.weight", 4);
+    static final int LANE_BEST_EFFORT_WEIGHT = Integer.getInteger("firecloud.lane.bestEffort.weight", 1);
+    static final long LANE_BEST_EFFORT_MAX_AGE_MILLIS = Long.getLong("firecloud.lane.bestEffort.maxAge", 3000L);
+    // CCS allows 100 unacknowledged messages per connection
+    static final int IN_FLIGHT_WINDOW = Integer.getInteger("firecloud.inflight.window", 100);
+    static final long ACK_TIMEOUT_MILLIS = Long.getLong("firecloud.ack.timeout", 60000L);
+
+    // Downstream transport constant, "xmpp" or "http", change the url to use the GcmHttpSimulator
+    static final String DOWNSTREAM_TRANSPORT = System.getProperty("firecloud.downstream.transport", "xmpp");
+    static final String HTTP_URL = System.getProperty("firecloud.http.url", "https://gcm-http.googleapis.com/gcm/send");
+    static final int HTTP_SENDERS = Integer.getInteger("firecloud.http.senders", 4);
+    static final int HTTP_TIMEOUT_MILLIS = Integer.getInteger("firecloud.http.timeout", 10000);
+
+    // Retry constant
+    static final int RETRY_MAX_ATTEMPTS = Integer.getInteger("firecloud.retry.attempts", 5);
+    static final long RETRY_BASE_DELAY_MILLIS = Long.getLong("firecloud.retry.delay", 1000L);
+    static final long RETRY_MAX_DELAY_MILLIS = Long.getLong("firecloud.retry.maxDelay", 60000L);
+
+    // Lifecycle constant
+    static final long SHUTDOWN_TIMEOUT_MILLIS = Long.getLong("firecloud.shutdown.timeout", 20000L);
+
+    // Metrics constant, a port of 0 disables the endpoint
+    static final String METRICS_HOST = System.getProperty("firecloud.metrics.host", "127.0.0.1");
+    static final int METRICS_PORT = Integer.getInteger("firecloud.metrics.port", 9464);
+}
@@ -2,18 +2,51 @@ package fr.upem.firecloud;
 
 import org.jivesoftware.smack.XMPPException;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 public class ServerMain {
 
+    private static final String TAG = "ServerMain";
+
     public static void main(String[] args) {
         final long projectId = 900984276030L;
         final String apiKey = args[0];
 
-        CcsClient ccsClient = new CcsClient(projectId, apiKey, true);
+        // The Smack debugger dumps every packet, only enable it with -Dfirecloud.log.packets=true
+        final CcsClient ccsClient = new CcsClient(projectId, apiKey, Log.isPacketDumpEnabled());
 
         try {
             ccsClient.connect();
         } catch (XMPPException e) {
-            e.printStackTrace();
+            Log.e(TAG, "The connection to CCS failed", e);
+            ccsClient.shutdown(0, TimeUnit.MILLISECONDS);
+            Log.flush(1, TimeUnit.SECONDS);
+            return;
         }
+
+        // -Dfirecloud.metrics.port=0 disables the metrics endpoint
+        final MetricsServer metricsServer = ServerConfig.METRICS_PORT > 0
+                ? new MetricsServer(ccsClient, ServerConfig.METRICS_HOST, ServerConfig.METRICS_PORT)
+                : null;
+        if (metricsServer != null) {
+            try {
+                metricsServer.start();
+            } catch (IOException e) {
+                Log.e(TAG, "The metrics endpoint could not be started", e);
+            }
+        }
+
+        // SIGTERM or SIGINT : let the accepted messages go through before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ccsClient.shutdown(ServerConfig.SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (metricsServer != null) {
+                    metricsServer.stop();
+                }
+                Log.flush(1, TimeUnit.SECONDS);
+            }
+        }, "firecloud-shutdown"));
     }
 }
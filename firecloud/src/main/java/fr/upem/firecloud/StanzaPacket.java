@@ -0,0 +1,21 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Packet whose XML has already been written, by a {@link StanzaWriter} for instance.
+ * It may hold several stanzas, written on the socket together.
+ */
+class StanzaPacket extends Packet {
+
+    private final String xml;
+
+    StanzaPacket(String xml) {
+        this.xml = xml;
+    }
+
+    @Override
+    public String toXML() {
+        return xml;
+    }
+}
@@ -0,0 +1,300 @@
+package fr.upem.firecloud;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes the stanzas sent to CCS in a single pass.
+ *
+ * The JSON of a message is written already escaped for XML, straight into a
+ * buffer reused by each thread, so neither an intermediate map nor an
+ * intermediate JSON string is built. ACKs always have the same shape and are
+ * written from a precompiled template.
+ *
+ * The same writer produces the JSON bodies of the multicast requests to the
+ * GCM HTTP endpoint, without the XML escaping.
+ *
+ * Values are written as json-simple would, except that values of unknown types,
+ * such as an ObjectId, are written as strings.
+ */
+final class StanzaWriter {
+
+    private static final String STANZA_START = "<message><" + GcmPacketExtension.GCM_ELEMENT_NAME
+            + " xmlns=\"" + GcmPacketExtension.GCM_NAMESPACE + "\">";
+    private static final String STANZA_END = "</" + GcmPacketExtension.GCM_ELEMENT_NAME + "></message>";
+
+    private static final String ACK_START = STANZA_START + "{\"message_type\":\"ack\",\"to\":\"";
+    private static final String ACK_MESSAGE_ID = "\",\"message_id\":\"";
+    private static final String ACK_END = "\"}" + STANZA_END;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Do not keep the buffer of an unusually large message for the lifetime of the thread
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(INITIAL_CAPACITY);
+        }
+    };
+
+    private StanzaWriter() {
+
+    }
+
+    /**
+     * Writes the stanza of a downstream GCM message.
+     *
+     * @param to RegistrationId of the target device (Required).
+     * @param messageId Unique messageId for which CCS will send an
+     *         "ack/nack" (Required).
+     * @param payload Message content intended for the application. (Optional).
+     * @param collapseKey GCM collapse_key parameter (Optional).
+     * @param timeToLive GCM time_to_live parameter (Optional).
+     * @param delayWhileIdle GCM delay_while_idle parameter (Optional).
+     * @return the XML stanza of the message.
+     */
+    static String message(String to, String messageId, Map<String, ?> payload,
+                          String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        StringBuilder out = acquire();
+        out.append(STANZA_START).append('{');
+        appendKey(out, "to", true);
+        appendString(out, to, true);
+        if (collapseKey != null) {
+            out.append(',');
+            appendKey(out, "collapse_key", true);
+            appendString(out, collapseKey, true);
+        }
+        if (timeToLive != null) {
+            out.append(",\"time_to_live\":").append(timeToLive.longValue());
+        }
+        if (delayWhileIdle != null && delayWhileIdle) {
+            out.append(",\"delay_while_idle\":true");
+        }
+        out.append(',');
+        appendKey(out, "message_id", true);
+        appendString(out, messageId, true);
+        out.append(',');
+        appendKey(out, "data", true);
+        appendValue(out, payload, true);
+        out.append('}').append(STANZA_END);
+        return release(out);
+    }
+
+    /**
+     * Writes the stanza of an ACK for an upstream message.
+     *
+     * @param to RegistrationId of the device who sent the upstream message.
+     * @param messageId messageId of the upstream message to be acknowledged to CCS.
+     * @return the XML stanza of the ack.
+     */
+    static String ack(String to, String messageId) {
+        StringBuilder out = acquire();
+        out.append(ACK_START);
+        appendEscaped(out, to, true);
+        out.append(ACK_MESSAGE_ID);
+        appendEscaped(out, messageId, true);
+        out.append(ACK_END);
+        return release(out);
+    }
+
+    /**
+     * Writes the JSON body of a request to the GCM HTTP endpoint, sending the
+     * same message to several devices. Unlike the stanzas, it is not escaped for XML.
+     *
+     * @param registrationIds RegistrationIds of the target devices, at most 1000 (Required).
+     * @param payload Message content intended for the application. (Optional).
+     * @param timeToLive GCM time_to_live parameter (Optional).
+     * @param delayWhileIdle GCM delay_while_idle parameter (Optional).
+     * @return the JSON body of the request.
+     */
+    static String multicast(Collection<String> registrationIds, Map<String, ?> payload,
+                            Long timeToLive, Boolean delayWhileIdle) {
+        StringBuilder out = acquire();
+        out.append('{');
+        appendKey(out, "registration_ids", false);
+        appendValue(out, registrationIds, false);
+        if (timeToLive != null) {
+            out.append(",\"time_to_live\":").append(timeToLive.longValue());
+        }
+        if (delayWhileIdle != null && delayWhileIdle) {
+            out.append(",\"delay_while_idle\":true");
+        }
+        if (payload != null) {
+            out.append(',');
+            appendKey(out, "data", false);
+            appendValue(out, payload, false);
+        }
+        out.append('}');
+        return release(out);
+    }
+
+    /**
+     * Writes a value once, to be copied as is in several messages.
+     * @param value the value, such as a list of events.
+     * @return the value written as JSON, and as JSON escaped for XML.
+     */
+    static RawJson raw(Object value) {
+        StringBuilder out = acquire();
+        appendValue(out, value, false);
+        String json = out.toString();
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '<' || c == '>' || c == '&') {
+                out.setLength(0);
+                for (int j = 0; j < json.length(); j++) {
+                    appendXmlChar(out, json.charAt(j));
+                }
+                return new RawJson(json, release(out));
+            }
+        }
+        release(out);
+        return new RawJson(json, json);
+    }
+
+    /**
+     * Writes the gcm element of an already encoded JSON message.
+     * @param json the JSON encoded message.
+     * @return the gcm element, with the JSON escaped for XML.
+     */
+    static String extension(String json) {
+        StringBuilder out = acquire();
+        out.append('<').append(GcmPacketExtension.GCM_ELEMENT_NAME)
+                .append(" xmlns=\"").append(GcmPacketExtension.GCM_NAMESPACE).append("\">");
+        for (int i = 0; i < json.length(); i++) {
+            appendXmlChar(out, json.charAt(i));
+        }
+        out.append("</").append(GcmPacketExtension.GCM_ELEMENT_NAME).append('>');
+        return release(out);
+    }
+
+    private static StringBuilder acquire() {
+        StringBuilder out = buffers.get();
+        out.setLength(0);
+        return out;
+    }
+
+    private static String release(StringBuilder out) {
+        String text = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            buffers.set(new StringBuilder(INITIAL_CAPACITY));
+        }
+        return text;
+    }
+
+    private static void appendKey(StringBuilder out, String key, boolean xml) {
+        appendString(out, key, xml);
+        out.append(':');
+    }
+
+    private static void appendValue(StringBuilder out, Object value, boolean xml) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            appendString(out, (String) value, xml);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isNaN(number) || Double.isInfinite(number)) {
+                out.append("null");
+            } else {
+                out.append(value.toString());
+            }
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+        } else if (value instanceof RawJson) {
+            out.append(xml ? ((RawJson) value).getXml() : ((RawJson) value).getJson());
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                appendKey(out, String.valueOf(entry.getKey()), xml);
+                appendValue(out, entry.getValue(), xml);
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            out.append('[');
+            Iterator<?> iterator = ((Collection<?>) value).iterator();
+            while (iterator.hasNext()) {
+                appendValue(out, iterator.next(), xml);
+                if (iterator.hasNext()) {
+                    out.append(',');
+                }
+            }
+            out.append(']');
+        } else {
+            // ObjectId, Date... : json-simple would write them without quotes
+            appendString(out, value.toString(), xml);
+        }
+    }
+
+    private static void appendString(StringBuilder out, String value, boolean xml) {
+        out.append('"');
+        appendEscaped(out, value, xml);
+        out.append('"');
+    }
+
+    /**
+     * Appends the content of a JSON string, escaped for JSON and then, if needed, for XML.
+     */
+    private static void appendEscaped(StringBuilder out, String value, boolean xml) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else if (xml) {
+                        appendXmlChar(out, c);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static void appendXmlChar(StringBuilder out, char c) {
+        switch (c) {
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '&':
+                out.append("&amp;");
+                break;
+            default:
+                out.append(c);
+                break;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package fr.upem.firecloud;
+
+import org.json.simple.parser.ParseException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming decoder of the JSON sent by CCS in the gcm extension.
+ *
+ * The text is read in a single pass straight into a {@link Message}: known
+ * fields are matched in place without allocating their key, the data object
+ * becomes the payload map and unknown fields are skipped without being built.
+ * Nested values of the data object, which devices should not send, are kept
+ * as their raw JSON text.
+ */
+final class UpstreamDecoder {
+
+    private static final String FROM = "from";
+    private static final String MESSAGE_ID = "message_id";
+    private static final String MESSAGE_TYPE = "message_type";
+    private static final String CATEGORY = "category";
+    private static final String DATA = "data";
+    private static final String ERROR = "error";
+    private static final String ERROR_DESCRIPTION = "error_description";
+    private static final String CONTROL_TYPE = "control_type";
+
+    private static final String[] KNOWN_KEYS = {
+            FROM, MESSAGE_ID, MESSAGE_TYPE, CATEGORY, DATA, ERROR, ERROR_DESCRIPTION, CONTROL_TYPE
+    };
+
+    // Most upstream payloads have less than 12 fields
+    private static final int PAYLOAD_CAPACITY = 16;
+
+    private final String json;
+    private int position;
+
+    private UpstreamDecoder(String json) {
+        this.json = json;
+    }
+
+    /**
+     * Decodes the JSON of a CCS message.
+     * @param json the text of the gcm extension.
+     * @return the decoded message.
+     * @throws ParseException if the text is not a valid JSON object.
+     */
+    static Message decode(String json) throws ParseException {
+        UpstreamDecoder decoder = new UpstreamDecoder(json);
+        Message message = decoder.readMessage();
+        decoder.expectEnd();
+        return message;
+    }
+
+    private Message readMessage() throws ParseException {
+        Message message = new Message();
+        expect('{');
+        if (peekAfterWhitespace() == '}') {
+            position++;
+            message.setPayload(Collections.<String, String>emptyMap());
+            return message;
+        }
+        for (;;) {
+            String key = readKey();
+            expect(':');
+            if (key == null) {
+                skipValue();
+            } else if (key == DATA) {
+                message.setPayload(readPayload());
+            } else {
+                String value = readScalar();
+                switch (key) {
+                    case FROM:
+                        message.setFrom(value);
+                        break;
+                    case MESSAGE_ID:
+                        message.setMessageId(value);
+                        break;
+                    case MESSAGE_TYPE:
+                        message.setMessageType(value);
+                        break;
+                    case CATEGORY:
+                        message.setCategory(value);
+                        break;
+                    case ERROR:
+                        message.setError(value);
+                        break;
+                    case ERROR_DESCRIPTION:
+                        message.setErrorDescription(value);
+                        break;
+                    case CONTROL_TYPE:
+                        message.setControlType(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            char next = nextAfterWhitespace();
+            if (next == '}') {
+                if (message.getPayload() == null) {
+                    message.setPayload(Collections.<String, String>emptyMap());
+                }
+                return message;
+            }
+            if (next != ',') {
+                throw unexpected(next);
+            }
+        }
+    }
+
+    private Map<String, String> readPayload() throws ParseException {
+        Map<String, String> payload = new HashMap<>(PAYLOAD_CAPACITY);
+        expect('{');
+        if (peekAfterWhitespace() == '}') {
+            position++;
+            return payload;
+        }
+        for (;;) {
+            String key = readString();
+            expect(':');
+            char first = peekAfterWhitespace();
+            String value;
+            if (first == '{' || first == '[') {
+                int start = position;
+                skipValue();
+                value = json.substring(start, position);
+            } else {
+                value = readScalar();
+            }
+            payload.put(key, value);
+            char next = nextAfterWhitespace();
+            if (next == '}') {
+                return payload;
+            }
+            if (next != ',') {
+                throw unexpected(next);
+            }
+        }
+    }
+
+    /**
+     * Reads a key and returns the matching known key constant, or null for an unknown key.
+     */
+    private String readKey() throws ParseException {
+        expect('"');
+        int start = position;
+        int end = json.indexOf('"', start);
+        if (end < 0) {
+            throw unexpected(-1);
+        }
+        if (json.lastIndexOf('\\', end) >= start) {
+            // Escaped key, rare enough to be unescaped before matching
+            position = start - 1;
+            String key = readString();
+            return knownKey(key, 0, key.length());
+        }
+        position = end + 1;
+        return knownKey(json, start, end - start);
+    }
+
+    private static String knownKey(String text, int start, int length) {
+        for (String known : KNOWN_KEYS) {
+            if (known.length() == length && text.regionMatches(start, known, 0, length)) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a string, a number, a boolean or null, as text.
+     */
+    private String readScalar() throws ParseException {
+        char first = peekAfterWhitespace();
+        if (first == '"') {
+            return readString();
+        }
+        int start = position;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            position++;
+        }
+        if (start == position) {
+            throw unexpected(first);
+        }
+        String literal = json.substring(start, position);
+        return "null".equals(literal) ? null : literal;
+    }
+
+    private String readString() throws ParseException {
+        expect('"');
+        int start = position;
+        StringBuilder unescaped = null;
+        while (position < json.length()) {
+            char c = json.charAt(position++);
+            if (c == '"') {
+                if (unescaped == null) {
+                    return json.substring(start, position - 1);
+                }
+                return unescaped.toString();
+            }
+            if (c != '\\') {
+                if (unescaped != null) {
+                    unescaped.append(c);
+                }
+                continue;
+            }
+            if (unescaped == null) {
+                unescaped = new StringBuilder(json.length() - start);
+                unescaped.append(json, start, position - 1);
+            }
+            if (position >= json.length()) {
+                break;
+            }
+            char escaped = json.charAt(position++);
+            switch (escaped) {
+                case 'b':
+                    unescaped.append('\b');
+                    break;
+                case 'f':
+                    unescaped.append('\f');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length()) {
+                        throw unexpected(escaped);
+                    }
+                    try {
+                        unescaped.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw unexpected(escaped);
+                    }
+                    position += 4;
+                    break;
+                default:
+                    // \" \\ \/
+                    unescaped.append(escaped);
+                    break;
+            }
+        }
+        throw unexpected(-1);
+    }
+
+    /**
+     * Skips any value, including nested objects and arrays, without building it.
+     */
+    private void skipValue() throws ParseException {
+        char first = peekAfterWhitespace();
+        if (first == '"') {
+            skipString();
+            return;
+        }
+        if (first != '{' && first != '[') {
+            readScalar();
+            return;
+        }
+        int depth = 0;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            position++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) {
+                    return;
+                }
+            }
+        }
+        throw unexpected(-1);
+    }
+
+    private void skipString() throws ParseException {
+        position++;
+        while (position < json.length()) {
+            char c = json.charAt(position++);
+            if (c == '\\') {
+                position++;
+            } else if (c == '"') {
+                return;
+            }
+        }
+        throw unexpected(-1);
+    }
+
+    private void expect(char expected) throws ParseException {
+        char c = nextAfterWhitespace();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    private void expectEnd() throws ParseException {
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (!Character.isWhitespace(c)) {
+                throw unexpected(c);
+            }
+            position++;
+        }
+    }
+
+    private char nextAfterWhitespace() throws ParseException {
+        char c = peekAfterWhitespace();
+        position++;
+        return c;
+    }
+
+    private char peekAfterWhitespace() throws ParseException {
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+            position++;
+        }
+        throw unexpected(-1);
+    }
+
+    private ParseException unexpected(int c) {
+        if (c < 0) {
+            return new ParseException(position, ParseException.ERROR_UNEXPECTED_EXCEPTION, "end of input");
+        }
+        return new ParseException(position, ParseException.ERROR_UNEXPECTED_CHAR, (char) c);
+    }
+}
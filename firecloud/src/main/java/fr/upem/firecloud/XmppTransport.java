@@ -0,0 +1,84 @@
+package fr.upem.firecloud;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the downstream messages over the CCS connections, one stanza per device.
+ * The stanzas nacked or never acknowledged are queued again by its {@link RetryScheduler}.
+ */
+class XmppTransport implements DownstreamTransport, RetryScheduler.Target<DownstreamMessage> {
+
+    private static final String TAG = "XmppTransport";
+
+    private final DownstreamSender downstreamSender;
+    private final MessageIdGenerator messageIdGenerator;
+    private final RetryScheduler<DownstreamMessage> retryScheduler = new RetryScheduler<>(this);
+
+    /**
+     * Creates a new XmppTransport.
+     * @param downstreamSender the queue of the connection pool.
+     * @param messageIdGenerator the generator of the ids acknowledged by CCS.
+     */
+    XmppTransport(DownstreamSender downstreamSender, MessageIdGenerator messageIdGenerator) {
+        this.downstreamSender = downstreamSender;
+        this.messageIdGenerator = messageIdGenerator;
+    }
+
+    /**
+     * Get the scheduler of the retries, which queues them in this transport.
+     * @return the retry scheduler.
+     */
+    RetryScheduler<DownstreamMessage> getRetryScheduler() {
+        return retryScheduler;
+    }
+
+    @Override
+    public boolean offer(DownstreamMessage message) throws InterruptedException {
+        return downstreamSender.enqueue(message, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void start() {
+        downstreamSender.start();
+    }
+
+    @Override
+    public void send(List<String> devices, Map<String, Object> payload, Lane lane) throws InterruptedException {
+        for (String to : devices) {
+            String messageId = messageIdGenerator.next();
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v(TAG, "Queuing the message " + messageId + " to " + to);
+            }
+            downstreamSender.enqueue(new DownstreamMessage(to, messageId,
+                    StanzaWriter.message(to, messageId, payload, null, null, true), lane));
+        }
+    }
+
+    @Override
+    public boolean awaitEmpty(long timeout, TimeUnit unit) throws InterruptedException {
+        return downstreamSender.awaitEmpty(timeout, unit);
+    }
+
+    @Override
+    public void stop() {
+        retryScheduler.stop();
+        downstreamSender.stop();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return downstreamSender.getQueueDepth();
+    }
+
+    @Override
+    public int getQueueDepth(Lane lane) {
+        return downstreamSender.getQueueDepth(lane);
+    }
+
+    @Override
+    public long getAgedOutCount() {
+        return downstreamSender.getAgedOutCount();
+    }
+}
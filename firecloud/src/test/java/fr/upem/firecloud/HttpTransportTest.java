@@ -0,0 +1,185 @@
+package fr.upem.firecloud;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends the messages with the HTTP transport to a local GcmHttpSimulator,
+ * whose answers are scripted, with retry delays short enough for the test.
+ */
+public class HttpTransportTest {
+
+    private static final long RETRY_DELAY_MILLIS = 10;
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * A request received by the simulator.
+     */
+    private static final class Request {
+        private final List<String> devices;
+        private final long receivedNanos = System.nanoTime();
+
+        private Request(List<String> devices) {
+            this.devices = devices;
+        }
+    }
+
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    private GcmHttpSimulator simulator;
+    private HttpTransport transport;
+
+    @Before
+    public void start() throws Exception {
+        simulator = new GcmHttpSimulator(0, 0);
+        simulator.start();
+        Map<String, RetryScheduler.Policy> policies = new HashMap<>();
+        policies.put("SERVICE_UNAVAILABLE", new RetryScheduler.Policy(3, RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS));
+        policies.put("DEVICE_MESSAGE_RATE_EXCEEDED",
+                new RetryScheduler.Policy(3, RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS));
+        transport = new HttpTransport("http://localhost:" + simulator.getPort() + "/gcm/send", "key", 1, 100,
+                (int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS), policies);
+        transport.start();
+    }
+
+    @After
+    public void stop() {
+        transport.stop();
+        simulator.stop();
+    }
+
+    @Test
+    public void send_batchesOf1000Devices() throws Exception {
+        simulator.setResponder(recordingResponder(null));
+        List<String> devices = devices("device-", 2500);
+
+        transport.send(devices, payload(), Lane.BEST_EFFORT);
+
+        List<String> received = new ArrayList<>();
+        for (int size : new int[]{1000, 1000, 500}) {
+            Request request = take();
+            assertEquals(size, request.devices.size());
+            received.addAll(request.devices);
+        }
+        assertEquals(devices, received);
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void send_retriesFailedDevicesByError() throws Exception {
+        // a and d unavailable, b rate limited, c delivered, e unregistered
+        Map<String, String> errors = new HashMap<>();
+        errors.put("a", "Unavailable");
+        errors.put("b", "DeviceMessageRateExceeded");
+        errors.put("d", "Unavailable");
+        errors.put("e", "NotRegistered");
+        simulator.setResponder(recordingResponder(errors));
+
+        transport.send(Arrays.asList("a", "b", "c", "d", "e"), payload(), Lane.INTERACTIVE);
+
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), take().devices);
+        Set<List<String>> retried = new HashSet<>();
+        retried.add(take().devices);
+        retried.add(take().devices);
+        assertEquals(new HashSet<>(Arrays.asList(Arrays.asList("a", "d"), Collections.singletonList("b"))), retried);
+        assertNull(requests.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void send_unavailableWaitsForRetryAfter() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        simulator.setResponder(new GcmHttpSimulator.Responder() {
+            @Override
+            public GcmHttpSimulator.Answer answer(List<String> devices) {
+                requests.add(new Request(devices));
+                return count.getAndIncrement() == 0 ? GcmHttpSimulator.Answer.unavailable(1) : null;
+            }
+        });
+
+        transport.send(Arrays.asList("a", "b"), payload(), Lane.INTERACTIVE);
+
+        Request first = take();
+        Request retry = take();
+        assertEquals(first.devices, retry.devices);
+        assertTrue(retry.receivedNanos - first.receivedNanos >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void send_failedDevicesWaitForRetryAfter() throws Exception {
+        final AtomicInteger count = new AtomicInteger();
+        simulator.setResponder(new GcmHttpSimulator.Responder() {
+            @Override
+            public GcmHttpSimulator.Answer answer(List<String> devices) {
+                requests.add(new Request(devices));
+                if (count.getAndIncrement() > 0) {
+                    return null;
+                }
+                return GcmHttpSimulator.Answer.results(Arrays.asList(null, "Unavailable"), 1);
+            }
+        });
+
+        transport.send(Arrays.asList("a", "b"), payload(), Lane.INTERACTIVE);
+
+        Request first = take();
+        Request retry = take();
+        assertEquals(Collections.singletonList("b"), retry.devices);
+        assertTrue(retry.receivedNanos - first.receivedNanos >= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Records the requests and answers the given error of each device to the
+     * first one, the next ones succeed.
+     */
+    private GcmHttpSimulator.Responder recordingResponder(final Map<String, String> errors) {
+        final AtomicInteger count = new AtomicInteger();
+        return new GcmHttpSimulator.Responder() {
+            @Override
+            public GcmHttpSimulator.Answer answer(List<String> devices) {
+                requests.add(new Request(devices));
+                if (errors == null || count.getAndIncrement() > 0) {
+                    return null;
+                }
+                List<String> results = new ArrayList<>();
+                for (String device : devices) {
+                    results.add(errors.get(device));
+                }
+                return GcmHttpSimulator.Answer.results(results, 0);
+            }
+        };
+    }
+
+    private Request take() throws InterruptedException {
+        Request request = requests.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("No request received", request);
+        return request;
+    }
+
+    private static List<String> devices(String prefix, int count) {
+        List<String> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            devices.add(prefix + i);
+        }
+        return devices;
+    }
+
+    private static Map<String, Object> payload() {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "test");
+        return payload;
+    }
+}
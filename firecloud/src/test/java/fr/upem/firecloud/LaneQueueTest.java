@@ -0,0 +1,89 @@
+package fr.upem.firecloud;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the weighted round robin and the aging of the lanes.
+ */
+public class LaneQueueTest {
+
+    @Test
+    public void take_weightedRoundRobin() throws Exception {
+        LaneQueue<Lane> queue = new LaneQueue<>(100);
+        for (int i = 0; i < 50; i++) {
+            for (Lane lane : Lane.values()) {
+                queue.put(lane, lane);
+            }
+        }
+        // Every lane gets as many turns as its weight in each round
+        for (int round = 0; round < 2; round++) {
+            for (Lane lane : Lane.values()) {
+                for (int i = 0; i < lane.getWeight(); i++) {
+                    assertEquals("round " + round, lane, queue.take());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void take_emptyLanesGiveTheirTurns() throws Exception {
+        LaneQueue<String> queue = new LaneQueue<>(100);
+        int count = Lane.INTERACTIVE.getWeight() + 2;
+        for (int i = 0; i < count; i++) {
+            queue.put("crud-" + i, Lane.CRUD);
+        }
+        queue.put("position", Lane.BEST_EFFORT);
+        // The interactive lane is empty, the others share the rounds
+        for (int i = 0; i < Lane.CRUD.getWeight(); i++) {
+            assertEquals("crud-" + i, queue.take());
+        }
+        assertEquals("position", queue.take());
+        for (int i = Lane.CRUD.getWeight(); i < count; i++) {
+            assertEquals("crud-" + i, queue.take());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void put_bestEffortDropsOldest() throws Exception {
+        LaneQueue<String> queue = new LaneQueue<>(2);
+        queue.put("position-1", Lane.BEST_EFFORT);
+        queue.put("position-2", Lane.BEST_EFFORT);
+        queue.put("position-3", Lane.BEST_EFFORT);
+        assertTrue(queue.offer("position-4", Lane.BEST_EFFORT, 0, TimeUnit.MILLISECONDS));
+        assertEquals(2, queue.size(Lane.BEST_EFFORT));
+        assertEquals(2, queue.getAgedOutCount());
+        assertEquals("position-3", queue.take());
+        assertEquals("position-4", queue.take());
+    }
+
+    @Test
+    public void offer_fullLaneWithoutAging() throws Exception {
+        LaneQueue<String> queue = new LaneQueue<>(2);
+        queue.put("reply-1", Lane.CRUD);
+        queue.put("reply-2", Lane.CRUD);
+        assertFalse(queue.offer("reply-3", Lane.CRUD, 10, TimeUnit.MILLISECONDS));
+        // Other lanes are not blocked by a full one
+        assertTrue(queue.offer("event-id", Lane.INTERACTIVE, 0, TimeUnit.MILLISECONDS));
+        assertEquals(3, queue.size());
+        assertEquals(0, queue.getAgedOutCount());
+    }
+
+    @Test
+    public void take_agesOutOldMessages() throws Exception {
+        LaneQueue<String> queue = new LaneQueue<>(10);
+        queue.put("old-position", Lane.BEST_EFFORT);
+        queue.put("old-reply", Lane.CRUD);
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(Lane.BEST_EFFORT.getMaxAgeNanos()) + 100);
+        queue.put("new-position", Lane.BEST_EFFORT);
+        // Only the lanes with a maximum age lose their old messages
+        assertEquals("old-reply", queue.take());
+        assertEquals("new-position", queue.take());
+        assertEquals(1, queue.getAgedOutCount());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,155 @@
+package fr.upem.firecloud;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the deflated fields can be read back by the devices.
+ */
+public class PayloadCodecTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BASE64_DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    @Test
+    public void deflate_roundTrip() throws Exception {
+        String json = "{\"events\":[{\"_id\":\"e1\",\"name\":\"D\u00eener\",\"emoji\":\"\ud83d\ude00\"}]}";
+        assertEquals(json, inflate(PayloadCodec.deflate(json)));
+    }
+
+    @Test
+    public void deflate_emptyText() throws Exception {
+        assertEquals("", inflate(PayloadCodec.deflate("")));
+    }
+
+    @Test
+    public void deflate_textLargerThanTheFirstBuffer() throws Exception {
+        // Random text barely compresses, so the output buffer has to grow
+        Random random = new Random(42);
+        StringBuilder json = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            json.append((char) (' ' + random.nextInt(95)));
+        }
+        assertEquals(json.toString(), inflate(PayloadCodec.deflate(json.toString())));
+    }
+
+    @Test
+    public void deflate_isBase64WithPadding() {
+        for (int length = 0; length < 200; length++) {
+            StringBuilder json = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                json.append((char) ('a' + i * 7 % 26));
+            }
+            String encoded = PayloadCodec.deflate(json.toString());
+            assertEquals(encoded, 0, encoded.length() % 4);
+            for (int i = 0; i < encoded.length(); i++) {
+                char c = encoded.charAt(i);
+                boolean padding = c == '=' && i >= encoded.length() - 2;
+                assertTrue(encoded, padding || BASE64_DIGITS.indexOf(c) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void deflate_reusedByTheSameThread() throws Exception {
+        String first = PayloadCodec.deflate("{\"a\":\"first\"}");
+        assertEquals("{\"b\":\"second\"}", inflate(PayloadCodec.deflate("{\"b\":\"second\"}")));
+        assertEquals(first, PayloadCodec.deflate("{\"a\":\"first\"}"));
+    }
+
+    @Test
+    public void base64_knownVectors() {
+        // RFC 4648 test vectors
+        String[][] vectors = {
+                {"", ""}, {"f", "Zg=="}, {"fo", "Zm8="}, {"foo", "Zm9v"},
+                {"foob", "Zm9vYg=="}, {"fooba", "Zm9vYmE="}, {"foobar", "Zm9vYmFy"},
+        };
+        for (String[] vector : vectors) {
+            byte[] bytes = vector[0].getBytes(UTF_8);
+            assertEquals(vector[1], PayloadCodec.base64(bytes, bytes.length));
+        }
+    }
+
+    @Test
+    public void base64_roundTripAllByteValues() {
+        byte[] bytes = new byte[300];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        for (int length = 0; length <= bytes.length; length++) {
+            byte[] expected = new byte[length];
+            System.arraycopy(bytes, 0, expected, 0, length);
+            assertArrayEquals(expected, base64Decode(PayloadCodec.base64(bytes, length)));
+        }
+    }
+
+    @Test
+    public void acceptsDeflate() {
+        Map<String, Object> payload = new HashMap<>();
+        assertFalse(PayloadCodec.acceptsDeflate(payload));
+        payload.put(PayloadCodec.ACCEPT, "gzip");
+        assertFalse(PayloadCodec.acceptsDeflate(payload));
+        payload.put(PayloadCodec.ACCEPT, "gzip,deflate");
+        assertTrue(PayloadCodec.acceptsDeflate(payload));
+        assertFalse(PayloadCodec.acceptsDeflate(Collections.<String, Object>singletonMap(PayloadCodec.ACCEPT, 1)));
+    }
+
+    private static String inflate(String encoded) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(base64Decode(encoded));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        while (!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            if (length == 0 && !inflater.finished() && inflater.needsInput()) {
+                fail("Truncated deflate stream");
+            }
+            out.write(buffer, 0, length);
+        }
+        inflater.end();
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Strict base64 decoding, java.util.Base64 is not available on Android.
+     */
+    private static byte[] base64Decode(String encoded) {
+        assertEquals(encoded, 0, encoded.length() % 4);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < encoded.length(); i += 4) {
+            int bits = 0;
+            int padding = 0;
+            for (int j = 0; j < 4; j++) {
+                char c = encoded.charAt(i + j);
+                int digit;
+                if (c == '=' && i + 4 == encoded.length() && j >= 2) {
+                    digit = 0;
+                    padding++;
+                } else {
+                    assertEquals("Padding in the middle of " + encoded, 0, padding);
+                    digit = BASE64_DIGITS.indexOf(c);
+                    assertTrue("Not a base64 digit : " + c, digit >= 0);
+                }
+                bits = bits << 6 | digit;
+            }
+            out.write(bits >>> 16);
+            if (padding < 2) {
+                out.write(bits >>> 8 & 0xFF);
+            }
+            if (padding < 1) {
+                out.write(bits & 0xFF);
+            }
+        }
+        return out.toByteArray();
+    }
+}
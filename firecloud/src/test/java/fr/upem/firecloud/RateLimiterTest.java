@@ -0,0 +1,174 @@
+package fr.upem.firecloud;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the token buckets of the rate limiter, with a rate slow enough for
+ * the test not to depend on its own speed.
+ */
+public class RateLimiterTest {
+
+    // One token per second, three at once
+    private static final String LIMIT = "1/3";
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private RateLimiter rateLimiter;
+
+    @After
+    public void stop() throws Exception {
+        if (rateLimiter != null) {
+            rateLimiter.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void acquire_burstThenShed() {
+        rateLimiter = new RateLimiter(LIMIT, "", "shed", 0, 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        }
+        assertEquals(-1, rateLimiter.acquire("device-1", "createEvent"));
+        assertEquals(-1, rateLimiter.acquire("device-1", "createEvent"));
+        assertEquals(Long.valueOf(2), rateLimiter.getShedCounts().get("createEvent"));
+        assertTrue(rateLimiter.getDelayedCounts().isEmpty());
+    }
+
+    @Test
+    public void acquire_bucketsByDeviceAndAction() {
+        rateLimiter = new RateLimiter(LIMIT, "", "shed", 0, 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        }
+        assertEquals(0, rateLimiter.acquire("device-2", "createEvent"));
+        assertEquals(0, rateLimiter.acquire("device-1", "getEvent"));
+        assertEquals(3, rateLimiter.getBucketCount());
+    }
+
+    @Test
+    public void acquire_actionLimitOverridesDefault() {
+        rateLimiter = new RateLimiter("", "sendPosition=1/1", "shed", 0, 1);
+        assertEquals(0, rateLimiter.acquire("device-1", "sendPosition"));
+        assertEquals(-1, rateLimiter.acquire("device-1", "sendPosition"));
+        // No default limit
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        }
+    }
+
+    @Test
+    public void acquire_refillsOverTime() throws Exception {
+        // One token every 50 ms
+        rateLimiter = new RateLimiter("20/1", "", "shed", 0, 1);
+        assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        assertEquals(-1, rateLimiter.acquire("device-1", "createEvent"));
+        Thread.sleep(100);
+        assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+    }
+
+    @Test
+    public void acquire_delayedByAboutOneInterval() {
+        rateLimiter = new RateLimiter(LIMIT, "", "delay", 5000, 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        }
+        long first = rateLimiter.acquire("device-1", "createEvent");
+        assertTrue(first + " ns", first > INTERVAL_NANOS / 2 && first <= INTERVAL_NANOS);
+        long second = rateLimiter.acquire("device-1", "createEvent");
+        assertTrue(second + " ns", second > first + INTERVAL_NANOS / 2 && second <= 2 * INTERVAL_NANOS);
+        assertEquals(Long.valueOf(2), rateLimiter.getDelayedCounts().get("createEvent"));
+    }
+
+    @Test
+    public void acquire_shedAboveMaxDelay() {
+        rateLimiter = new RateLimiter(LIMIT, "", "delay", 1500, 1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        }
+        assertTrue(rateLimiter.acquire("device-1", "createEvent") > 0);
+        // The next token would come in about 2 seconds
+        assertEquals(-1, rateLimiter.acquire("device-1", "createEvent"));
+        assertEquals(Long.valueOf(1), rateLimiter.getShedCounts().get("createEvent"));
+        assertEquals(Long.valueOf(1), rateLimiter.getDelayedCounts().get("createEvent"));
+    }
+
+    @Test
+    public void hold_notNeededWithoutDelay() {
+        rateLimiter = new RateLimiter(LIMIT, "", "delay", 5000, 1);
+        assertFalse(rateLimiter.hold("device-1", new Recorder(null, "now"), 0));
+        assertEquals(0, rateLimiter.getHoldCount());
+    }
+
+    @Test
+    public void hold_keepsTheOrderOfTheDevice() throws Exception {
+        // One position every 100 ms, the other actions are not limited
+        rateLimiter = new RateLimiter("", "updatePosition=10/1", "delay", 5000, 1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        CountDownLatch released = new CountDownLatch(2);
+        assertEquals(0, rateLimiter.acquire("device-1", "updatePosition"));
+        long delay = rateLimiter.acquire("device-1", "updatePosition");
+        assertTrue(delay > 0);
+        assertTrue(rateLimiter.hold("device-1", new Recorder(released, "position", handled), delay));
+        // A later message of another action waits behind the delayed one
+        assertEquals(0, rateLimiter.acquire("device-1", "createEvent"));
+        assertTrue(rateLimiter.hold("device-1", new Recorder(released, "createEvent", handled), 0));
+        // Other devices are not held back
+        assertFalse(rateLimiter.hold("device-2", new Recorder(null, "other", handled), 0));
+        assertEquals(1, rateLimiter.getHoldCount());
+
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("position", "createEvent"), handled);
+        // Once released, the next messages are not held back anymore
+        assertFalse(rateLimiter.hold("device-1", new Recorder(null, "next", handled), 0));
+        assertEquals(0, rateLimiter.getHoldCount());
+    }
+
+    @Test
+    public void hold_releasedWhenStopping() throws Exception {
+        rateLimiter = new RateLimiter(LIMIT, "", "delay", 5000, 1);
+        List<String> handled = new CopyOnWriteArrayList<>();
+        assertTrue(rateLimiter.hold("device-1", new Recorder(null, "delayed", handled), TimeUnit.SECONDS.toNanos(3)));
+        assertTrue(rateLimiter.hold("device-1", new Recorder(null, "behind", handled), 0));
+        // The held messages are run right away rather than after their delay
+        rateLimiter.stop(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("delayed", "behind"), handled);
+        // Once stopped, nothing is held anymore
+        assertFalse(rateLimiter.hold("device-1", new Recorder(null, "late", handled), TimeUnit.SECONDS.toNanos(1)));
+        rateLimiter = null;
+    }
+
+    /**
+     * Records the name of a message when it is handled.
+     */
+    private static final class Recorder implements Runnable {
+        private final CountDownLatch done;
+        private final String name;
+        private final List<String> handled;
+
+        private Recorder(CountDownLatch done, String name) {
+            this(done, name, new CopyOnWriteArrayList<String>());
+        }
+
+        private Recorder(CountDownLatch done, String name, List<String> handled) {
+            this.done = done;
+            this.name = name;
+            this.handled = handled;
+        }
+
+        @Override
+        public void run() {
+            handled.add(name);
+            if (done != null) {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package fr.upem.firecloud;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the stanza writer against json-simple and the XML escaping of Smack,
+ * which it replaces.
+ *
+ * The old stanzas also escaped the quotes for XML, and json-simple escapes the
+ * slashes, so the texts are compared once decoded.
+ */
+public class StanzaWriterTest {
+
+    private static final String GCM_START = "<gcm xmlns=\"google:mobile:data\">";
+    private static final String GCM_END = "</gcm>";
+
+    @Test
+    public void message_quotesAndBackslashes() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("name", "say \"hi\"");
+        payload.put("path", "C:\\dir\\");
+        payload.put("it's", "a/b");
+        assertMessageLikeBefore("device-\"1\"", "m-1", payload);
+    }
+
+    @Test
+    public void message_controlChars() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("escaped", "\b\f\n\r\t");
+        payload.put("unicode", "\u0000\u0001\u001f\u007f");
+        payload.put("separators", "\u2028\u2029");
+        payload.put("text", "caf\u00e9 \ud83d\ude00");
+        assertMessageLikeBefore("device-1", "m-2", payload);
+    }
+
+    @Test
+    public void message_xmlSpecialChars() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("<name>", "<b>Dinner & drinks</b>");
+        payload.put("entity", "&amp; &lt;");
+        payload.put("cdata", "]]>");
+        assertMessageLikeBefore("device<&>", "m&3", payload);
+    }
+
+    @Test
+    public void message_nonStringValues() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("int", 42);
+        payload.put("long", 1445000000000L);
+        payload.put("double", -1.5);
+        payload.put("boolean", true);
+        payload.put("null", null);
+        payload.put("list", Arrays.asList(1, "two", null, false));
+        Map<String, Object> nested = new HashMap<>();
+        nested.put("lat", 48.8397);
+        nested.put("lng", 2.5856);
+        payload.put("position", nested);
+        assertMessageLikeBefore("device-1", "m-4", payload);
+    }
+
+    @Test
+    public void message_unknownTypesAsStrings() throws Exception {
+        // json-simple wrote them unquoted, and NaN as is, which was not JSON
+        UUID id = UUID.randomUUID();
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("_id", id);
+        payload.put("nan", Double.NaN);
+        payload.put("infinity", Float.POSITIVE_INFINITY);
+
+        Map<?, ?> data = (Map<?, ?>) parse(gcmJson(StanzaWriter.message("device-1", "m-5", payload, null, null,
+                null))).get("data");
+
+        assertEquals(id.toString(), data.get("_id"));
+        assertTrue(data.containsKey("nan"));
+        assertNull(data.get("nan"));
+        assertTrue(data.containsKey("infinity"));
+        assertNull(data.get("infinity"));
+    }
+
+    @Test
+    public void message_options() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "receivedEventId");
+        assertMessageLikeBefore("device-1", "m-6", payload, "collapse&key", 3600L, true);
+        assertMessageLikeBefore("device-1", "m-7", payload, null, null, false);
+    }
+
+    @Test
+    public void ack_escaped() throws Exception {
+        for (String[] ack : new String[][]{{"device-1", "m-1"}, {"dev\"ice<&>", "m\\\n1"}}) {
+            Map<String, Object> message = new HashMap<>();
+            message.put("message_type", "ack");
+            message.put("to", ack[0]);
+            message.put("message_id", ack[1]);
+            assertSameStanza(oldStanza(message), StanzaWriter.ack(ack[0], ack[1]));
+        }
+    }
+
+    @Test
+    public void raw_xmlAndJsonModes() throws Exception {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "<b>Dinner & drinks</b> \"at\" 8");
+        value.put("members", Arrays.asList("a", "b"));
+
+        RawJson raw = StanzaWriter.raw(value);
+
+        assertEquals(parse(JSONValue.toJSONString(value)), parse(raw.getJson()));
+        assertTrue(raw.getJson().contains("<b>Dinner & drinks</b>"));
+        assertXmlSafe(raw.getXml());
+        assertEquals(raw.getJson(), unescapeXml(raw.getXml()));
+
+        RawJson plain = StanzaWriter.raw(Arrays.asList("a", "b"));
+        assertSame(plain.getJson(), plain.getXml());
+    }
+
+    @Test
+    public void raw_copiedAsTheValue() throws Exception {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "<b>Dinner & drinks</b>\n");
+        value.put("count", 2);
+        List<Object> events = new ArrayList<>();
+        events.add(value);
+
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("action", "receivedEventsOwned");
+        payload.put("events", events);
+        Map<String, Object> rawPayload = new LinkedHashMap<>();
+        rawPayload.put("action", "receivedEventsOwned");
+        rawPayload.put("events", StanzaWriter.raw(events));
+
+        assertEquals(StanzaWriter.message("device-1", "m-8", payload, null, null, true),
+                StanzaWriter.message("device-1", "m-8", rawPayload, null, null, true));
+        List<String> devices = Arrays.asList("device-1", "device-2");
+        assertEquals(StanzaWriter.multicast(devices, payload, null, true),
+                StanzaWriter.multicast(devices, rawPayload, null, true));
+    }
+
+    @Test
+    public void multicast_notEscapedForXml() throws Exception {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("name", "<b>Dinner & \"drinks\"</b>\t");
+        payload.put("count", 3);
+        List<String> devices = Arrays.asList("device-1", "device<2>");
+
+        String json = StanzaWriter.multicast(devices, payload, 60L, true);
+
+        Map<String, Object> message = new HashMap<>();
+        message.put("registration_ids", devices);
+        message.put("time_to_live", 60L);
+        message.put("delay_while_idle", true);
+        message.put("data", payload);
+        assertEquals(parse(JSONValue.toJSONString(message)), parse(json));
+        assertTrue(json.contains("<b>Dinner & \\\"drinks\\\"</b>"));
+    }
+
+    @Test
+    public void extension_escapesJson() throws Exception {
+        String json = "{\"name\":\"<b>Dinner & \\\"drinks\\\"</b>\"}";
+        assertSameStanza("<message>" + GCM_START + StringUtils.escapeForXML(json) + GCM_END + "</message>",
+                "<message>" + StanzaWriter.extension(json) + "</message>");
+    }
+
+    private static void assertMessageLikeBefore(String to, String messageId, Map<String, Object> payload)
+            throws Exception {
+        assertMessageLikeBefore(to, messageId, payload, null, null, true);
+    }
+
+    /**
+     * Checks a stanza against the one built by the removed createJsonMessage.
+     */
+    private static void assertMessageLikeBefore(String to, String messageId, Map<String, Object> payload,
+                                                String collapseKey, Long timeToLive, Boolean delayWhileIdle)
+            throws Exception {
+        Map<String, Object> message = new HashMap<>();
+        message.put("to", to);
+        if (collapseKey != null) {
+            message.put("collapse_key", collapseKey);
+        }
+        if (timeToLive != null) {
+            message.put("time_to_live", timeToLive);
+        }
+        if (delayWhileIdle != null && delayWhileIdle) {
+            message.put("delay_while_idle", true);
+        }
+        message.put("message_id", messageId);
+        message.put("data", payload);
+        assertSameStanza(oldStanza(message),
+                StanzaWriter.message(to, messageId, payload, collapseKey, timeToLive, delayWhileIdle));
+    }
+
+    private static String oldStanza(Map<String, Object> message) {
+        return "<message>" + GCM_START + StringUtils.escapeForXML(JSONValue.toJSONString(message)) + GCM_END
+                + "</message>";
+    }
+
+    private static void assertSameStanza(String expected, String actual) throws Exception {
+        String json = gcmJson(actual);
+        assertEquals(parse(gcmJson(expected)), parse(json));
+    }
+
+    /**
+     * Get the JSON of the gcm element of a stanza, checking it is well escaped.
+     */
+    private static String gcmJson(String stanza) {
+        assertTrue(stanza, stanza.startsWith("<message>" + GCM_START));
+        assertTrue(stanza, stanza.endsWith(GCM_END + "</message>"));
+        String content = stanza.substring(("<message>" + GCM_START).length(),
+                stanza.length() - (GCM_END + "</message>").length());
+        assertXmlSafe(content);
+        return unescapeXml(content);
+    }
+
+    private static void assertXmlSafe(String content) {
+        assertEquals(content, -1, content.indexOf('<'));
+        assertEquals(content, -1, content.indexOf('>'));
+        String withoutEntities = content.replace("&lt;", "").replace("&gt;", "").replace("&amp;", "")
+                .replace("&quot;", "").replace("&apos;", "");
+        assertEquals(content, -1, withoutEntities.indexOf('&'));
+    }
+
+    private static String unescapeXml(String content) {
+        return content.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&amp;", "&");
+    }
+
+    private static Map<?, ?> parse(String json) throws Exception {
+        Object parsed = new JSONParser().parse(json);
+        assertTrue(json, parsed instanceof Map);
+        return (Map<?, ?>) parsed;
+    }
+}
@@ -0,0 +1,152 @@
+package fr.upem.firecloud;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the upstream decoder against json-simple, which it replaces.
+ */
+public class UpstreamDecoderTest {
+
+    private static final String[] FIELDS = {
+            "from", "message_id", "message_type", "category", "error", "error_description", "control_type"
+    };
+
+    @Test
+    public void decode_upstreamMessage() throws Exception {
+        assertDecodedLikeJsonSimple("{\"category\":\"fr.upem.geoplan\",\"data\":{\"action\":\"createEvent\","
+                + "\"name\":\"Dinner\",\"date\":\"1445000000\"},\"message_id\":\"m-1\",\"from\":\"device-1\"}");
+    }
+
+    @Test
+    public void decode_receiptsAndControl() throws Exception {
+        assertDecodedLikeJsonSimple("{\"from\":\"device-1\",\"message_id\":\"m-2\",\"message_type\":\"ack\"}");
+        assertDecodedLikeJsonSimple("{\"message_type\":\"nack\",\"message_id\":\"m-3\",\"from\":\"device-1\","
+                + "\"error\":\"BAD_REGISTRATION\",\"error_description\":\"Invalid token\"}");
+        assertDecodedLikeJsonSimple("{\"message_type\":\"control\",\"control_type\":\"CONNECTION_DRAINING\"}");
+    }
+
+    @Test
+    public void decode_whitespaceAndEmptyObjects() throws Exception {
+        assertDecodedLikeJsonSimple(" { \"from\" : \"device-1\" ,\n\t\"data\" : { } } ");
+        assertDecodedLikeJsonSimple("{}");
+    }
+
+    @Test
+    public void decode_skipsUnknownFields() throws Exception {
+        assertDecodedLikeJsonSimple("{\"time_to_live\":3600,\"unknown\":{\"a\":[1,{\"b\":\"}\"}]},"
+                + "\"list\":[\"x\",\"]\"],\"flag\":true,\"none\":null,\"from\":\"device-1\"}");
+    }
+
+    @Test
+    public void decode_escapedStrings() throws Exception {
+        assertDecodedLikeJsonSimple("{\"from\":\"dev\\\"ice\\\\1\",\"data\":{\"name\":\"a\\/b\\b\\f\\n\\r\\tc\","
+                + "\"accent\":\"caf\\u00e9\",\"emoji\":\"\\ud83d\\ude00\",\"raw\":\"caf\u00e9 \ud83d\ude00\"}}");
+        assertDecodedLikeJsonSimple("{\"fr\\u006fm\":\"device-1\",\"data\":{\"k\\u0065y\":\"value\"}}");
+    }
+
+    @Test
+    public void decode_scalarPayloadValuesAsText() throws Exception {
+        Message message = UpstreamDecoder.decode("{\"data\":{\"n\":42,\"d\":-1.5e3,\"b\":false,\"z\":null}}");
+        Map<String, String> payload = message.getPayload();
+        assertEquals("42", payload.get("n"));
+        assertEquals("-1.5e3", payload.get("d"));
+        assertEquals("false", payload.get("b"));
+        assertTrue(payload.containsKey("z"));
+        assertNull(payload.get("z"));
+    }
+
+    @Test
+    public void decode_nestedPayloadValuesAsJson() throws Exception {
+        String nested = "{\"members\":[\"a\",\"b\"],\"place\":{\"lat\":48.8,\"lng\":2.3}}";
+        Message message = UpstreamDecoder.decode("{\"data\":{\"event\":" + nested + ",\"ids\":[1,2]}}");
+        assertEquals(JSONValue.parse(nested), JSONValue.parse(message.getPayload().get("event")));
+        assertEquals("[1,2]", message.getPayload().get("ids"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void decode_notAnObject() throws Exception {
+        UpstreamDecoder.decode("[\"from\",\"device-1\"]");
+    }
+
+    @Test
+    public void decode_malformedInput() {
+        String[] malformed = {
+                "",
+                "   ",
+                "{",
+                "{\"from\"",
+                "{\"from\":",
+                "{\"from\":\"device-1\"",
+                "{\"from\":\"device-1\";\"message_id\":\"m-1\"}",
+                "{\"from\":\"device-1}",
+                "{\"data\":{\"a\":\"b\"}",
+                "{\"data\":{\"a\":{\"b\":[1,2}}",
+                "{\"unknown\":[1,2,3}",
+                "{\"from\":\"device-1\"}x",
+                "{\"from\":\"device-1\"}}",
+        };
+        for (String json : malformed) {
+            try {
+                new JSONParser().parse(json);
+                fail("json-simple accepts " + json);
+            } catch (ParseException e) {
+                // Expected, the decoder must reject it too
+            }
+            try {
+                UpstreamDecoder.decode(json);
+                fail("The decoder accepts " + json);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void decode_rejectsWhatJsonSimpleTolerates() throws Exception {
+        String[] invalid = {
+                "{\"from\" \"device-1\"}",
+                "{\"from\":\"device-1\",}",
+                "{\"data\":{\"a\":\"b\",}}",
+                "{\"data\":{\"a\":\"\\u12\"}}",
+                "{\"data\":{\"a\":\"\\u12zz\"}}",
+        };
+        for (String json : invalid) {
+            try {
+                UpstreamDecoder.decode(json);
+                fail("The decoder accepts " + json);
+            } catch (ParseException e) {
+                // Expected, this is not valid JSON
+            }
+        }
+    }
+
+    private static void assertDecodedLikeJsonSimple(String json) throws Exception {
+        Map<?, ?> expected = (Map<?, ?>) new JSONParser().parse(json);
+        Message message = UpstreamDecoder.decode(json);
+        Map<String, String> fields = new HashMap<>();
+        fields.put("from", message.getFrom());
+        fields.put("message_id", message.getMessageId());
+        fields.put("message_type", message.getMessageType());
+        fields.put("category", message.getCategory());
+        fields.put("error", message.getError());
+        fields.put("error_description", message.getErrorDescription());
+        fields.put("control_type", message.getControlType());
+        for (String field : FIELDS) {
+            assertEquals(json + " : " + field, expected.get(field), fields.get(field));
+        }
+        Object data = expected.get("data");
+        if (data == null) {
+            assertTrue(json, message.getPayload().isEmpty());
+        } else {
+            assertEquals(json, data, message.getPayload());
+        }
+    }
+}